@@ -0,0 +1,357 @@
+package image_procs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident analysis service on a local HTTP port, so terminals pay for JVM
+ * start, native library load and JIT warm-up once instead of per image.
+ *
+ * POST /analyse?size=7,6,20,27,40,30,35,30,15,420&name=x.jpg&reduce=1 with
+ * the encoded image as body answers the ChipResult as JSON - 200 if the chip
+ * was located, 422 if not, 400 if the body does not decode. size may also
+ * name a registered ChipLayout. Every parameter is optional. Bodies beyond
+ * maxBody bytes are rejected with 413 before they are read. Requests are queued
+ * for a fixed pool of warm workers; once the queue is full they are rejected
+ * right away with 503 and a Retry-After header instead of piling up.
+ *
+ * GET /stats answers counters and p50/p99 latency as JSON, GET /metrics the
+ * stage metrics in Prometheus format.
+ */
+public class AnalysisService implements AutoCloseable {
+
+	/**
+	 * Latencies of the most recent requests, for percentiles over a sliding
+	 * window
+	 */
+	public static class Latencies {
+		protected final long[] window; // ring buffer of latencies in nanoseconds
+		protected long count; // latencies recorded so far
+
+		public Latencies(int capacity) {
+			window = new long[capacity];
+		}
+
+		public synchronized void record(long nanos) {
+			window[(int) (count++ % window.length)] = nanos;
+		}
+
+		/**
+		 * @param p percentile, 0 - 100
+		 * @return latency in nanoseconds not exceeded by p percent of the
+		 *         window, 0 if nothing was recorded
+		 */
+		public synchronized long percentile(double p) {
+			int n = (int) Math.min(count, window.length);
+			if (n == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(window, n);
+			Arrays.sort(sorted);
+			int i = (int) Math.ceil(p / 100 * n) - 1; // nearest rank
+			return sorted[Math.max(0, Math.min(n - 1, i))];
+		}
+	}
+
+	// given
+	protected int port; // port on the loopback interface, 0 for any free port
+	protected int workers; // number of analysis threads
+	protected int capacity; // requests admitted beyond workers before rejecting, also when adaptive runs fewer
+	protected ChipOptions options; // analysis modes shared by all requests
+	protected boolean adaptive; // split the cores between workers and OpenCV threads by queue depth
+	protected long maxBody = 64 << 20; // largest encoded image accepted, in bytes
+
+	// derived
+	protected HttpServer server;
+	protected ThreadPoolExecutor pool; // warm analysis workers with a bounded queue
+	protected ThreadBudget budget; // sizes pool and OpenCV threads, null unless adaptive
+	protected ExecutorService io; // reads requests and answers rejections
+	protected Latencies latencies; // end to end latency of answered analyses
+	protected AtomicLong accepted, rejected, located, failed; // counters
+
+	public AnalysisService(int port, int workers, int capacity, ChipOptions options) {
+		this.port = port;
+		this.workers = workers;
+		this.capacity = capacity;
+		this.options = options;
+		latencies = new Latencies(4096);
+		accepted = new AtomicLong();
+		rejected = new AtomicLong();
+		located = new AtomicLong();
+		failed = new AtomicLong();
+	}
+
+	/**
+	 * Let a ThreadBudget size the worker pool and OpenCV's thread pool by the
+	 * requests in flight, with workers as the upper bound of the pool: a lone
+	 * request is analysed by one worker with all cores, a burst by one worker
+	 * per core. The split switches while no request is being analysed, and
+	 * the queue grows by the workers the pool may drop, so capacity still
+	 * bounds the requests admitted beyond workers. Must be called before start.
+	 *
+	 * @param adaptive whether to adapt, otherwise workers run with OpenCV's
+	 *                 default threading
+	 */
+	public void adaptThreads(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Start workers and listen for requests
+	 *
+	 * @param warmUp number of synthetic chips analysed before the port opens,
+	 *               so the first requests run compiled code
+	 * @throws IOException
+	 */
+	public void start(int warmUp) throws IOException {
+		// an adaptive pool may shrink to one worker, the queue takes the others' share so as many requests
+		// are admitted as with all workers running
+		int queue = adaptive ? capacity + workers - 1 : capacity;
+		pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new ThreadPoolExecutor.AbortPolicy());
+		pool.prestartAllCoreThreads();
+		budget = adaptive ? new ThreadBudget(workers, pool) : null;
+		warm(warmUp);
+		io = Executors.newFixedThreadPool(Math.max(2, workers / 2));
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+		server.setExecutor(io);
+		server.createContext("/analyse", this::analyse);
+		server.createContext("/stats", ex -> respond(ex, 200, stats()));
+		server.createContext("/metrics", ex -> respond(ex, options.metrics == null ? 404 : 200,
+				options.metrics == null ? "{\"error\":\"metrics disabled\"}" : options.metrics.toPrometheus()));
+		server.start();
+		port = server.getAddress().getPort();
+	}
+
+	/**
+	 * Analyse synthetic chips on the pool one after another, compiled code is
+	 * shared by all workers
+	 *
+	 * @param rounds number of chips, a failing round is logged and ends the
+	 *               warm-up without keeping the service from starting
+	 */
+	private void warm(int rounds) {
+		if (rounds <= 0)
+			return;
+		SyntheticChip sc = null;
+		try {
+			sc = new SyntheticChip(ChipLayout.DEFAULT.size());
+			for (int i = 0; i < rounds; i++) {
+				Mat img = sc.img.clone();
+				pool.submit(() -> {
+					new Chip(img, ChipLayout.DEFAULT, new ChipOptions()).release();
+					return null;
+				}).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | RuntimeException e) {
+			System.err.println("Warm-up failed, serving cold: " + (e instanceof ExecutionException ? e.getCause() : e));
+		} finally {
+			if (sc != null)
+				sc.release();
+		}
+	}
+
+	/**
+	 * Read the image and queue its analysis, the worker answers the request
+	 */
+	private void analyse(HttpExchange ex) throws IOException {
+		long start = System.nanoTime();
+		if (!"POST".equals(ex.getRequestMethod())) {
+			respond(ex, 405, "{\"error\":\"POST the encoded image\"}");
+			return;
+		}
+		Map<String, String> q = query(ex.getRequestURI().getRawQuery());
+		ChipLayout layout;
+		int reduction;
+		try {
+			layout = q.containsKey("size") ? ChipLayout.parse(q.get("size")) : ChipLayout.DEFAULT;
+			reduction = q.containsKey("reduce") ? Integer.parseInt(q.get("reduce")) : options.reduction;
+			ImageSource.flags(reduction);
+		} catch (IllegalArgumentException e) {
+			respond(ex, 400, "{\"error\":" + MetricsRegistry.quote(e.getMessage()) + "}");
+			return;
+		}
+		String name = q.get("name");
+		if (pool.getQueue().remainingCapacity() == 0) { // not worth reading a body that would be rejected
+			reject(ex);
+			return;
+		}
+		String length = ex.getRequestHeaders().getFirst("Content-Length");
+		try {
+			if (length != null && Long.parseLong(length) > maxBody) {
+				respond(ex, 413, "{\"error\":\"image exceeds " + maxBody + " bytes\"}");
+				return;
+			}
+		} catch (NumberFormatException e) {
+			respond(ex, 400, "{\"error\":\"invalid Content-Length\"}");
+			return;
+		}
+		byte[] body;
+		try (InputStream in = ex.getRequestBody()) {
+			body = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxBody + 1)); // chunked bodies have no length
+		}
+		if (body.length > maxBody) {
+			respond(ex, 413, "{\"error\":\"image exceeds " + maxBody + " bytes\"}");
+			return;
+		}
+		try {
+			pool.execute(() -> run(ex, name, body, layout, reduction, start));
+			accepted.incrementAndGet();
+			if (budget != null)
+				budget.adapt();
+		} catch (RejectedExecutionException e) { // queue full - shed load instead of queueing without bound
+			reject(ex);
+		}
+	}
+
+	private void reject(HttpExchange ex) throws IOException {
+		rejected.incrementAndGet();
+		ex.getResponseHeaders().set("Retry-After", "1");
+		respond(ex, 503, "{\"error\":\"busy\",\"queued\":" + pool.getQueue().size() + "}");
+	}
+
+	/**
+	 * Analyse one image on a worker and answer the request
+	 */
+	private void run(HttpExchange ex, String name, byte[] body, ChipLayout layout, int reduction, long start) {
+		ChipResult res;
+		int status;
+		if (budget != null)
+			budget.begin();
+		try {
+			Mat img;
+			try {
+				img = ImageSource.decode(body, reduction);
+			} catch (RuntimeException e) { // corrupt body, e.g. CvException
+				img = null;
+			}
+			if (img == null || img.empty()) {
+				MatScope.release(img);
+				res = ChipResult.failed(name, new IllegalArgumentException("Cannot decode image"),
+						System.nanoTime() - start);
+				failed.incrementAndGet();
+				status = 400;
+			} else {
+				Chip chip = new Chip(name, img, layout, options);
+				res = ChipResult.of(chip, System.nanoTime() - start);
+				if (budget != null)
+					budget.observe(chip.orig.total(), res.nanos);
+				chip.release();
+				located.incrementAndGet();
+				status = 200;
+			}
+		} catch (IOException | RuntimeException e) {
+			res = ChipResult.failed(name, e, System.nanoTime() - start);
+			failed.incrementAndGet();
+			status = e instanceof IllegalArgumentException ? 422 : 500;
+		} finally {
+			if (budget != null)
+				budget.end();
+		}
+		try {
+			respond(ex, status, res.toJson());
+		} catch (IOException e) { // client went away
+		}
+		latencies.record(System.nanoTime() - start);
+		if (budget != null)
+			budget.adapt(); // back towards latency mode as the burst drains
+	}
+
+	/**
+	 * @return counters and latency percentiles as JSON
+	 */
+	public String stats() {
+		return String.format(
+				"{\"accepted\":%d,\"rejected\":%d,\"located\":%d,\"failed\":%d,\"queued\":%d,\"active\":%d,"
+						+ "\"p50_ms\":%.2f,\"p99_ms\":%.2f,\"threads\":%s}",
+				accepted.get(), rejected.get(), located.get(), failed.get(), pool.getQueue().size(),
+				pool.getActiveCount(), latencies.percentile(50) / 1e6, latencies.percentile(99) / 1e6,
+				budget == null ? "null" : MetricsRegistry.quote(budget.report()));
+	}
+
+	private static void respond(HttpExchange ex, int status, String json) throws IOException {
+		byte[] b = json.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		ex.sendResponseHeaders(status, b.length);
+		try (OutputStream out = ex.getResponseBody()) {
+			out.write(b);
+		}
+	}
+
+	/**
+	 * @param raw raw query string, may be null
+	 * @return decoded parameters
+	 */
+	private static Map<String, String> query(String raw) {
+		Map<String, String> res = new HashMap<String, String>();
+		if (raw == null)
+			return res;
+		for (String kv : raw.split("&")) {
+			int eq = kv.indexOf('=');
+			if (eq > 0)
+				res.put(URLDecoder.decode(kv.substring(0, eq), StandardCharsets.UTF_8),
+						URLDecoder.decode(kv.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+		return res;
+	}
+
+	/**
+	 * Stop accepting requests, finish the queued ones and stop the workers,
+	 * then save the profile store of options, if any
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		io.shutdown();
+		if (options.profiles != null) {
+			try {
+				options.profiles.close();
+			} catch (IOException e) {
+				System.err.println("Saving profiles failed: " + e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8420;
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 2 * workers;
+		String profiles = System.getProperty("chip.profiles"); // learned sweep starts file, unset - full sweep
+		ProfileStore store = profiles == null ? null : new ProfileStore(Paths.get(profiles)); // closed by close()
+		AnalysisService as = new AnalysisService(port, workers, capacity,
+				new ChipOptions().metrics(new MetricsRegistry()).profiles(store));
+		as.adaptThreads("adaptive".equals(System.getProperty("chip.threads")));
+		as.start(10);
+		Runtime.getRuntime().addShutdownHook(new Thread(as::close));
+		System.out.println("listening on 127.0.0.1:" + as.port + " with " + workers + " workers, queue " + capacity);
+	}
+}
@@ -0,0 +1,269 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.opencv.core.Core;
+
+public class BatchAnalyzer {
+
+	// given
+	protected List<String> filenames; // images to be analysed
+	protected ChipLayout layout; // compiled chip design, shared by all images (see Chip)
+	protected int workers; // number of worker threads
+	protected ChipOptions options; // analysis modes shared by all chips
+	protected boolean adaptive; // split the cores between workers and OpenCV threads by queue depth
+
+	// derived
+	protected List<Result> failures; // images that could not be analysed, in completion order
+	protected int succeeded; // number of images analysed successfully
+	protected long elapsed; // wall time of the last run in nanoseconds
+	protected ThreadBudget budget; // core split of the last run, null unless adaptive
+
+	/**
+	 * Outcome of analysing a single image, either chip or error is set
+	 */
+	public static class Result {
+		protected final String filename;
+		protected final Chip chip; // analysed chip, null on failure
+		protected final Exception error; // reason of failure, null on success
+		protected final long nanos; // time spent on this image by its worker
+		protected boolean kept; // chip taken over by the sink, released by run otherwise
+
+		protected Result(String filename, Chip chip, Exception error, long nanos) {
+			this.filename = filename;
+			this.chip = chip;
+			this.error = error;
+			this.nanos = nanos;
+		}
+
+		public boolean failed() {
+			return error != null;
+		}
+
+		/**
+		 * Take over the analysed chip, which run would otherwise release once
+		 * the sink returns; the caller releases it
+		 * 
+		 * @return analysed chip, null on failure
+		 */
+		public Chip keep() {
+			kept = true;
+			return chip;
+		}
+
+		/**
+		 * @return headless result model of this outcome
+		 */
+		public ChipResult toResult() {
+			return failed() ? ChipResult.failed(filename, error, nanos) : ChipResult.of(chip, nanos);
+		}
+	}
+
+	public BatchAnalyzer(List<String> filenames, ChipLayout layout, int workers, ChipOptions options) {
+		if (workers < 1)
+			throw new IllegalArgumentException("At least one worker is required");
+		this.filenames = filenames;
+		this.layout = layout;
+		this.workers = workers;
+		this.options = options;
+		failures = new ArrayList<Result>();
+	}
+
+	public BatchAnalyzer(List<String> filenames, ChipLayout layout, int workers) {
+		this(filenames, layout, workers, new ChipOptions());
+	}
+
+	public BatchAnalyzer(List<String> filenames, ChipLayout layout) {
+		this(filenames, layout, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Let a ThreadBudget size the worker pool and OpenCV's thread pool by the
+	 * number of images left, with workers as the upper bound of the pool. The
+	 * first image runs on one worker with all cores, the rest of the batch on
+	 * one worker per core with single threaded OpenCV calls; the OpenCV thread
+	 * count only changes while no image is in flight.
+	 *
+	 * @param adaptive whether to adapt, otherwise workers run with OpenCV's
+	 *                 default threading
+	 */
+	public void adaptThreads(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * List all images directly under given directory in name order
+	 *
+	 * @param dir directory holding chip images
+	 * @return absolute filenames of the images
+	 */
+	public static List<String> listImages(File dir) {
+		File[] files = dir.listFiles((d, nm) -> nm.toLowerCase().matches(".*\\.(jpe?g|png|bmp|tiff?)"));
+		if (files == null)
+			throw new IllegalArgumentException(dir + " is not a readable directory");
+		Arrays.sort(files);
+		List<String> res = new ArrayList<String>();
+		for (File f : files)
+			res.add(f.getAbsolutePath());
+		return res;
+	}
+
+	/**
+	 * Analyse one image, failures are captured rather than thrown
+	 *
+	 * @param filename image to be analysed
+	 * @return result of the analysis
+	 */
+	private Result analyse(String filename) {
+		long start = System.nanoTime();
+		ThreadBudget tb = budget; // null unless adaptive
+		if (tb != null)
+			tb.begin();
+		try {
+			Chip chip = new Chip(filename, layout, options);
+			return new Result(filename, chip, null, System.nanoTime() - start);
+		} catch (IOException | RuntimeException e) { // IllegalArgumentException if chip cannot be located
+			return new Result(filename, null, e, System.nanoTime() - start);
+		} finally {
+			if (tb != null)
+				tb.end();
+		}
+	}
+
+	/**
+	 * Analyse all images on the worker pool - update failures, succeeded, elapsed.
+	 * The chip of each result is released once the sink returns, unless the sink
+	 * took it over with Result.keep.
+	 *
+	 * @param sink receives every result in completion order, on the calling
+	 *             thread, may be null
+	 * @throws InterruptedException
+	 */
+	public void run(Consumer<Result> sink) throws InterruptedException {
+		failures.clear();
+		succeeded = 0;
+		long start = System.nanoTime();
+		int n = Math.min(workers, Math.max(1, filenames.size()));
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		budget = adaptive ? new ThreadBudget(workers, pool) : null;
+		try {
+			CompletionService<Result> done = new ExecutorCompletionService<Result>(pool);
+			for (String nm : filenames)
+				done.submit(() -> analyse(nm));
+			if (budget != null)
+				budget.adapt();
+			for (int i = 0; i < filenames.size(); i++) {
+				Result res;
+				try {
+					res = done.take().get();
+				} catch (ExecutionException e) { // analyse() captures its own exceptions
+					throw new IllegalStateException(e.getCause());
+				}
+				if (budget != null) {
+					if (!res.failed())
+						budget.observe(res.chip.orig.total(), res.nanos);
+					budget.adapt(); // fewer workers once the queue is empty, the images in flight keep their split
+				}
+				if (res.failed())
+					failures.add(res);
+				else
+					succeeded++;
+				try {
+					if (sink != null)
+						sink.accept(res);
+				} finally {
+					if (!res.failed() && !res.kept)
+						res.chip.release();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			elapsed = System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * @return images analysed per second in the last run
+	 */
+	public double throughput() {
+		return elapsed == 0 ? 0 : (succeeded + failures.size()) * 1e9 / elapsed;
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length == 0) {
+			System.out.println("usage: BatchAnalyzer <directory | image...>");
+			return;
+		}
+		List<String> nms = new ArrayList<String>();
+		for (String arg : args) {
+			File f = new File(arg);
+			if (f.isDirectory())
+				nms.addAll(listImages(f));
+			else
+				nms.add(arg);
+		}
+		String layouts = System.getProperty("chip.layouts"); // properties file of named layouts, unset - none
+		if (layouts != null)
+			ChipLayout.load(Paths.get(layouts));
+		ChipLayout layout = ChipLayout.parse(System.getProperty("chip.layout", "default")); // name or 10 values
+
+		String export = System.getProperty("chip.metrics"); // prometheus or json, unset - no metrics
+		String out = System.getProperty("chip.out"); // .jsonl or columnar result file, unset - JSON lines on stdout
+		String debug = System.getProperty("chip.debug"); // directory for debug images, unset - none
+		int reduction = Integer.getInteger("chip.reduce", 1); // decode images at 1/reduction resolution
+		String cache = System.getProperty("chip.cache"); // result cache directory, unset - always search
+		boolean triage = Boolean.getBoolean("chip.triage"); // reject hopeless images before the sweep
+		boolean adaptive = "adaptive".equals(System.getProperty("chip.threads")); // unset - fixed workers
+		String profiles = System.getProperty("chip.profiles"); // learned sweep starts file, unset - full sweep
+		MetricsRegistry registry = export == null ? null : new MetricsRegistry();
+		DebugSink sink = debug == null ? null : new DebugSink(new File(debug));
+		ResultWriter writer = out == null ? null : ResultWriter.open(Paths.get(out));
+		ProfileStore store = profiles == null ? null : new ProfileStore(Paths.get(profiles));
+		BatchAnalyzer ba = new BatchAnalyzer(nms, layout, Runtime.getRuntime().availableProcessors(),
+				new ChipOptions().reduce(reduction).metrics(registry).debug(sink)
+						.cache(cache == null ? null : new ResultCache(Paths.get(cache), 64L << 20))
+						.triage(triage ? new Triage() : null).profiles(store));
+		ba.adaptThreads(adaptive);
+		try {
+			ba.run(res -> {
+				ChipResult r = res.toResult(); // chip released by run
+				try {
+					if (writer == null)
+						System.out.println(r.toJson());
+					else
+						writer.write(r);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} finally {
+			if (writer != null)
+				writer.close();
+			if (sink != null)
+				sink.close();
+			if (store != null)
+				store.close();
+		}
+		System.err.printf("%d succeeded, %d failed, %.2f images/s on %d workers%n", ba.succeeded,
+				ba.failures.size(), ba.throughput(), ba.workers);
+		if (ba.budget != null)
+			System.err.println(ba.budget.report());
+		System.err.println(MatScope.live() + " Mats still live " + MatScope.report());
+		if (registry != null)
+			System.err.println("prometheus".equals(export) ? registry.toPrometheus() : registry.toJson());
+	}
+}
@@ -0,0 +1,201 @@
+package image_procs;
+
+import java.util.Arrays;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Block statistics of a whole transformed chip in one pass over its pixels.
+ * A label map derived from the size layout tells the block every pixel belongs
+ * to, so the histograms of all blocks and channels are binned together and
+ * the normalised blocks are written in a second pass over the same buffer,
+ * without splitting channels or any temporary Mats. Results are identical to
+ * an ImageKit of every block.
+ */
+public class BlockStats {
+
+	// pixel and histogram buffers, reused by all chips analysed on a thread
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	private static class Buffers {
+		byte[] pixels = new byte[0]; // interleaved BGR pixels of the chip
+		int[][] counts = new int[0][]; // 256 bins per block channel, block * 3 + channel
+	}
+
+	// given
+	protected int[] size; // design data of the chip (see Chip)
+	protected int rows, cols; // size of the transformed chip image
+
+	// derived
+	protected int[][] rects; // top, bottom, left, right boundary of each block
+	protected short[] labels; // block id of every pixel, -1 outside all blocks; null if blocks overlap
+
+	/**
+	 * Label map of a layout, immutable once built; see ChipLayout.stats
+	 */
+	BlockStats(ChipLayout layout, int rows, int cols) {
+		this.size = layout.size();
+		this.rows = rows;
+		this.cols = cols;
+		rects = layout.rects();
+		labels = new short[rows * cols];
+		Arrays.fill(labels, (short) -1);
+		for (int id = 0; id < rects.length; id++) {
+			int[] r = rects[id];
+			if (r[0] < 0 || r[1] > rows || r[2] < 0 || r[3] > cols || id > Short.MAX_VALUE) {
+				labels = null;
+				return;
+			}
+			for (int y = r[0]; y < r[1]; y++) {
+				for (int x = r[2]; x < r[3]; x++) {
+					if (labels[y * cols + x] != -1) { // a pixel in two blocks cannot be binned once
+						labels = null;
+						return;
+					}
+					labels[y * cols + x] = (short) id;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param size design data of the chip
+	 * @param rows/cols size of the transformed chip image
+	 * @return label map of the layout, shared by all chips of the same layout
+	 */
+	public static BlockStats of(int[] size, int rows, int cols) {
+		return ChipLayout.of(size).stats(rows, cols);
+	}
+
+	/**
+	 * @return whether blocks are disjoint and inside the image, so the single
+	 *         pass applies
+	 */
+	public boolean fused() {
+		return labels != null;
+	}
+
+	/**
+	 * Histogram every block channel in one pass over restr and derive its
+	 * peaks - update blockValue, majorPeaks and, if given, normBlocks
+	 *
+	 * @param restr      transformed 8-bit BGR chip image of rows x cols
+	 * @param dist       coverage range of histogram peak
+	 * @param blockValue representative RGB value for each block
+	 * @param majorPeaks major peak intensity of each block channel
+	 * @param normBlocks receives the normalised blocks, owned by the caller;
+	 *                   null to skip normalisation
+	 */
+	public void measure(Mat restr, int dist, int[][] blockValue, int[][] majorPeaks, Mat[] normBlocks) {
+		if (!fused())
+			throw new IllegalStateException("Blocks of layout " + Arrays.toString(size) + " overlap");
+		if (restr.type() != CvType.CV_8UC3 || restr.rows() != rows || restr.cols() != cols)
+			throw new IllegalArgumentException("Expected " + rows + "x" + cols + " BGR image, got " + restr);
+		Buffers buf = BUFFERS.get();
+		int n = rows * cols * 3, bins = rects.length * 3;
+		if (buf.pixels.length < n)
+			buf.pixels = new byte[n];
+		if (buf.counts.length < bins) {
+			buf.counts = new int[bins][];
+			for (int i = 0; i < bins; i++)
+				buf.counts[i] = new int[256];
+		}
+		byte[] p = buf.pixels;
+		int[][] counts = buf.counts;
+		for (int i = 0; i < bins; i++)
+			Arrays.fill(counts[i], 0);
+		restr.get(0, 0, p);
+
+		// bin all blocks at once
+		short[] lb = labels;
+		for (int i = 0, j = 0; j < lb.length; i += 3, j++) {
+			int id = lb[j];
+			if (id < 0)
+				continue;
+			counts[id * 3][p[i] & 0xff]++;
+			counts[id * 3 + 1][p[i + 1] & 0xff]++;
+			counts[id * 3 + 2][p[i + 2] & 0xff]++;
+		}
+
+		// peaks, same as a Histogram of each channel split from the block
+		int[] shift = new int[bins];
+		for (int id = 0; id < rects.length; id++) {
+			int[] repre = new int[3];
+			for (int c = 0; c < 3; c++) {
+				Histogram h = new Histogram(counts[id * 3 + c], dist);
+				repre[c] = h.minorPeakInten;
+				majorPeaks[id][c] = h.majorPeakInten;
+				shift[id * 3 + c] = Math.max(0, h.majorPeakInten - 200); // saturated like an 8-bit shift mask
+			}
+			blockValue[id] = repre;
+		}
+		if (normBlocks == null)
+			return;
+
+		// normalise - shift every non-zero pixel by the major peak of its block channel
+		for (int id = 0; id < rects.length; id++) {
+			int[] r = rects[id];
+			int w = (r[3] - r[2]) * 3, s0 = shift[id * 3], s1 = shift[id * 3 + 1], s2 = shift[id * 3 + 2];
+			byte[] out = new byte[(r[1] - r[0]) * w];
+			for (int y = r[0], o = 0; y < r[1]; y++) {
+				for (int i = (y * cols + r[2]) * 3, e = i + w; i < e; i += 3, o += 3) {
+					out[o] = norm(p[i], s0);
+					out[o + 1] = norm(p[i + 1], s1);
+					out[o + 2] = norm(p[i + 2], s2);
+				}
+			}
+			normBlocks[id] = new Mat(r[1] - r[0], r[3] - r[2], CvType.CV_8UC3);
+			normBlocks[id].put(0, 0, out);
+		}
+	}
+
+	/**
+	 * @param v     pixel value
+	 * @param shift non-negative shift of its channel
+	 * @return v shifted with saturation, 0 stays 0
+	 */
+	private static byte norm(byte v, int shift) {
+		int u = v & 0xff;
+		return u == 0 ? 0 : (byte) Math.min(255, u + shift);
+	}
+
+	public static void main(String[] args) {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int[] size = ChipLayout.DEFAULT.size();
+		SyntheticChip sc = new SyntheticChip(size);
+		Mat restr = MatScope.own(new Mat(), "BlockStats");
+		Imgproc.resize(sc.img, restr, new Size(size[9], size[9])); // stands in for a transformed chip
+		sc.release();
+
+		// fused pass against an ImageKit of every block
+		BlockStats bs = of(size, restr.rows(), restr.cols());
+		int n = size[0] * size[1];
+		int[][] bv = new int[n][3], mp = new int[n][3];
+		Mat[] norm = new Mat[n];
+		ImageKit[] iks = new ImageKit[n];
+		long t0 = System.nanoTime();
+		bs.measure(restr, 7, bv, mp, norm);
+		long t1 = System.nanoTime();
+		for (int id = 0; id < n; id++) {
+			int[] r = bs.rects[id];
+			iks[id] = new ImageKit(MatScope.own(restr.submat(r[0], r[1], r[2], r[3]), "BlockStats"), 1, 7);
+		}
+		long t2 = System.nanoTime();
+		int mismatches = 0;
+		try (MatScope ms = new MatScope("BlockStats")) {
+			for (int id = 0; id < n; id++) {
+				Mat diff = ms.add(new Mat());
+				Core.absdiff(iks[id].norm, norm[id], diff);
+				if (!Arrays.equals(iks[id].repreValue, bv[id]) || Core.countNonZero(ms.add(diff.reshape(1))) != 0)
+					mismatches++;
+				MatScope.release(iks[id].img, iks[id].norm, norm[id]);
+			}
+		}
+		System.out.printf("fused %.2f ms, per block %.2f ms, %d of %d blocks differ%n", (t1 - t0) / 1e6,
+				(t2 - t1) / 1e6, mismatches, n);
+		MatScope.release(restr);
+	}
+}
@@ -1,20 +1,29 @@
 package image_procs;
 
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.opencv.core.*;
 import org.opencv.core.Core.MinMaxLocResult;
+import image_procs.ChipMetrics.Counter;
+import image_procs.ChipMetrics.Stage;
 import org.opencv.imgproc.Imgproc;
 import obsolete.PersTransformation;
-import org.opencv.imgcodecs.Imgcodecs;
 
 public class Chip {
 
+	private static final int PREVIEW = 8; // reduction of the decode triaged before the full one
+
 	// given
 	protected String filename;
+	protected ChipOptions options; // optional analysis modes
+	protected ChipMetrics metrics; // per stage timings and search effort, shared with trial chips
 	protected int[] size; // design data of the real chip (distances in 10 fold)
+	protected ChipLayout layout; // geometry compiled from size, shared by all chips of the design
 	/*
 	 * size array components: 0/1 # of row/column; 2/3 horizontal/vertical distance
 	 * between left/top_most point of the top-left spot and the left/top inner chip
@@ -24,27 +33,141 @@ public class Chip {
 
 	// derived
 	protected Mat orig;
-	protected Mat gray;
-	protected MatOfPoint inner; // inner contour of the black border surrounding the chip
+	protected Mat gray; // gray scale image the chip is searched on, downscaled in pyramid mode
+	protected Mat fine; // full resolution gray in pyramid mode, null otherwise
+	protected double scale = 1; // scale of gray relative to orig
+	protected MatOfPoint inner; // inner contour of the black border surrounding the chip, in gray coordinates
 	protected MatOfPoint2f mjCorners; // corners of major chip portion in clockwise order
 	protected MatOfPoint2f mrCorners; // ... minor chip ...
 	protected Mat restr; // finally transformed chip image
 	protected Mat remediated; // remediated restr - residual border and glare removed
 	protected Mat assem; // assembled from blocks array, should be the same as restr - correction check
+	protected int boost; // number of L channel increments (by 10) when chip was located
+	protected int threshold; // thresholding value chip was located with
+	protected int hint; // threshold the sweep starts from unless a profile was learned, 0 - none
+	protected MatOfPoint seed; // inner border contour found by the caller in orig coordinates, null - search it
+	protected String cacheKey; // key of the image in options.cache, null if not cached
+	protected boolean resumed; // whether the sweep was skipped with cached corners
+	protected Triage.Verdict verdict; // quality checks of the image, null until triaged
 	
 	// block information
 	protected Mat[] blocks; // all blocks - 42
 	protected Mat[] normBlocks; // all normalised blocks - 42
 	protected int[][] blockValue; // representative RGB value for each block - 42x3
+	protected int[][] majorPeaks; // major peak intensity of each block channel - 42x3
 
 	public Chip(String filename, int[] size) throws IOException {
+		this(filename, size, new ChipOptions());
+	}
+
+	public Chip(String filename, int[] size, ChipOptions options) throws IOException {
+		this(filename, ChipLayout.of(size), options);
+	}
+
+	/**
+	 * @param filename image file of the chip
+	 * @param layout   compiled design of the real chip
+	 * @param options  optional analysis modes
+	 * @throws IOException
+	 */
+	public Chip(String filename, ChipLayout layout, ChipOptions options) throws IOException {
+		this(layout, options);
+		this.filename = filename;
+		solveOrRelease();
+	}
+
+	/**
+	 * Analyse an already decoded image, e.g. a video frame
+	 * 
+	 * @param orig    BGR image of the chip, owned and released by the chip
+	 * @param layout  compiled design of the real chip
+	 * @param options optional analysis modes
+	 * @throws IOException
+	 */
+	public Chip(Mat orig, ChipLayout layout, ChipOptions options) throws IOException {
+		this(null, orig, layout, options);
+	}
+
+	/**
+	 * Analyse an image decoded ahead of time, e.g. by ImageSource.Prefetcher
+	 * 
+	 * @param filename image file orig was decoded from, used for profile lookup
+	 *                 and reporting
+	 * @param orig     BGR image of the chip, owned and released by the chip
+	 * @param layout   compiled design of the real chip
+	 * @param options  optional analysis modes
+	 * @throws IOException
+	 */
+	public Chip(String filename, Mat orig, ChipLayout layout, ChipOptions options) throws IOException {
+		this(layout, options);
+		this.filename = filename;
+		this.orig = MatScope.own(orig, "Chip");
+		solveOrRelease();
+	}
+
+	/**
+	 * Analyse one chip cut out of a larger image, e.g. a tray
+	 * 
+	 * @param filename  name the chip is reported under
+	 * @param orig      BGR image of the chip, owned and released by the chip
+	 * @param gray      gray scale image of orig, owned and released by the
+	 *                  chip; null to convert orig
+	 * @param outline   inner contour of the chip's black border in orig
+	 *                  coordinates, tried before any sweep; owned and released
+	 *                  by the chip, null to search it
+	 * @param layout    compiled design of the real chip
+	 * @param options   optional analysis modes
+	 * @param threshold thresholding value the chip outline was detected with,
+	 *                  tried first by the sweep
+	 * @throws IOException
+	 */
+	public Chip(String filename, Mat orig, Mat gray, MatOfPoint outline, ChipLayout layout, ChipOptions options,
+			int threshold) throws IOException {
+		this(layout, options);
 		this.filename = filename;
-		this.size = size;
-		restr = new Mat();
-		blocks = new Mat[size[0] * size[1]];
-		normBlocks = new Mat[size[0] * size[1]];
-		blockValue = new int[size[0] * size[1]][3];
-		solve();
+		this.orig = MatScope.own(orig, "Chip");
+		this.gray = MatScope.own(gray, "Chip");
+		this.seed = MatScope.own(outline, "Chip");
+		this.hint = threshold;
+		solveOrRelease();
+	}
+
+	/**
+	 * Chip with nothing analysed yet, for callers that drive the stages
+	 * themselves
+	 * 
+	 * @param layout  compiled design of the real chip
+	 * @param options optional analysis modes
+	 */
+	protected Chip(ChipLayout layout, ChipOptions options) {
+		this.options = options;
+		metrics = options.metrics == null ? ChipMetrics.DISABLED : new ChipMetrics(options.metrics);
+		this.size = layout.size();
+		this.layout = layout;
+		restr = MatScope.own(new Mat(), "Chip");
+		blocks = new Mat[layout.blocks()];
+		normBlocks = new Mat[layout.blocks()];
+		blockValue = new int[layout.blocks()][3];
+		majorPeaks = new int[layout.blocks()][3];
+	}
+
+	/**
+	 * Trial chip sharing the read-in images of src, used to evaluate one sweep
+	 * candidate without touching the state of src
+	 * 
+	 * @param src chip whose orig and gray have been read in
+	 */
+	protected Chip(Chip src) {
+		filename = src.filename;
+		options = src.options;
+		metrics = src.metrics;
+		size = src.size;
+		layout = src.layout;
+		orig = src.orig;
+		gray = src.gray;
+		fine = src.fine;
+		scale = src.scale;
+		restr = MatScope.own(new Mat(), "Chip");
 	}
 
 	// helper methods for chip localisation and transformation
@@ -66,17 +189,97 @@ public class Chip {
 	 * Returns all contours detected in "target" image in ascending area order
 	 * 
 	 * @param target target gray scale image for contour detection
-	 * @return a list of contour objects with ascending area
+	 * @return a list of contour objects with ascending area, owned by the caller
 	 */
-	private List<MatOfPoint> contourFinder(Mat target, int threshold) {
-		Mat thresh = new Mat(), inv = new Mat(), hierarchy = new Mat();
-		Imgproc.threshold(target, thresh, threshold, 255, 0); // thresholding
-		Core.bitwise_not(thresh, inv); // find inverse
-		List<MatOfPoint> contour = new ArrayList<MatOfPoint>();
+	List<MatOfPoint> contourFinder(Mat target, int threshold) {
+		return contourFinder(target, threshold, Integer.MAX_VALUE);
+	}
 
-		Imgproc.findContours(inv, contour, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-		Collections.sort(contour, (c1, c2) -> (int) (Imgproc.contourArea(c1)) - (int) (Imgproc.contourArea(c2)));
-		return contour;
+	/**
+	 * Returns the largest contours detected in "target" image in ascending area
+	 * order, the same as the tail of the full list. The rest is released right
+	 * away and never sorted.
+	 * 
+	 * @param target target gray scale image for contour detection
+	 * @param keep   number of largest contours returned
+	 * @return up to keep contours with ascending area, owned by the caller
+	 */
+	List<MatOfPoint> contourFinder(Mat target, int threshold, int keep) {
+		try (MatScope ms = new MatScope("contourFinder")) {
+			Mat thresh = ms.add(new Mat()), inv = ms.add(new Mat()), hierarchy = ms.add(new Mat());
+			Imgproc.threshold(target, thresh, threshold, 255, 0); // thresholding
+			Core.bitwise_not(thresh, inv); // find inverse
+			List<MatOfPoint> contour = new ArrayList<MatOfPoint>();
+
+			Imgproc.findContours(inv, contour, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+			metrics.contours(contour.size());
+			int[] area = areas(contour);
+			if (keep >= contour.size())
+				return MatScope.ownAll(ascending(contour, area), "contourFinder");
+			List<MatOfPoint> res = top(contour, area, keep);
+			ms.addAll(contour); // all but the largest are released with the scope
+			for (MatOfPoint m : res)
+				ms.keep(m);
+			return MatScope.ownAll(res, "contourFinder");
+		}
+	}
+
+	/**
+	 * @param contour contours
+	 * @return area of every contour, truncated to int
+	 */
+	private static int[] areas(List<MatOfPoint> contour) {
+		int[] res = new int[contour.size()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = (int) Imgproc.contourArea(contour.get(i));
+		return res;
+	}
+
+	/**
+	 * Select the k largest contours without sorting all of them. Ties keep
+	 * their list order, so the result equals the tail of a stable ascending
+	 * sort.
+	 *
+	 * @param contour contours
+	 * @param area    area of every contour
+	 * @param k       number of contours selected
+	 * @return up to k contours in ascending area order
+	 */
+	private static List<MatOfPoint> top(List<MatOfPoint> contour, int[] area, int k) {
+		int[] best = new int[Math.min(k, contour.size())]; // indices, descending
+		int n = 0;
+		for (int i = 0; i < area.length; i++) {
+			int j = n < best.length ? n++ : best.length;
+			while (j > 0 && area[best[j - 1]] <= area[i]) { // later contour wins a tie
+				if (j < best.length)
+					best[j] = best[j - 1];
+				j--;
+			}
+			if (j < best.length)
+				best[j] = i;
+		}
+		List<MatOfPoint> res = new ArrayList<MatOfPoint>();
+		for (int i = n - 1; i >= 0; i--)
+			res.add(contour.get(best[i]));
+		return res;
+	}
+
+	/**
+	 * Sort contours in ascending area order, stable
+	 *
+	 * @param contour contours
+	 * @param area    area of every contour
+	 * @return sorted copy of contour
+	 */
+	private static List<MatOfPoint> ascending(List<MatOfPoint> contour, int[] area) {
+		Integer[] order = new Integer[area.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(area[a], area[b]));
+		List<MatOfPoint> res = new ArrayList<MatOfPoint>();
+		for (int i : order)
+			res.add(contour.get(i));
+		return res;
 	}
 
 	/**
@@ -102,11 +305,13 @@ public class Chip {
 	 * @throws IOException
 	 */
 	private MatOfPoint2f cornerFinder(MatOfPoint tar, double thre) throws IOException {
-		MatOfPoint2f ct = new MatOfPoint2f(tar.toArray()); // target contour to draw
-		double epsilon = thre * Imgproc.arcLength(ct, true); //
-		MatOfPoint2f corners = new MatOfPoint2f();
-		Imgproc.approxPolyDP(ct, corners, epsilon, true); // derive corners of ct
-		return corners;
+		try (MatScope ms = new MatScope("cornerFinder")) {
+			MatOfPoint2f ct = ms.add(new MatOfPoint2f(tar.toArray())); // target contour to draw
+			double epsilon = thre * Imgproc.arcLength(ct, true); //
+			MatOfPoint2f corners = new MatOfPoint2f();
+			Imgproc.approxPolyDP(ct, corners, epsilon, true); // derive corners of ct
+			return corners;
+		}
 	}
 
 	/**
@@ -116,12 +321,7 @@ public class Chip {
 	 * @return merge image where areas inside mask are maintained, outside are black
 	 */
 	private Mat maskInvAdd(Mat mask, Mat img) {
-		Mat mask_inv = new Mat(), img_inv = new Mat(), merge = new Mat(), merge_inv = new Mat();
-		Core.bitwise_not(mask, mask_inv);
-		Core.bitwise_not(img, img_inv);
-		Core.add(mask_inv, img_inv, merge_inv);
-		Core.bitwise_not(merge_inv, merge);
-		return merge;
+		return PixelKernels.maskInvAdd(mask, img); // not(not(mask) + not(img)) in one pass
 	}
 
 	/**
@@ -157,12 +357,7 @@ public class Chip {
 	 * @return
 	 */
 	private Mat subtract(Mat a, Mat b) {
-		Mat a_inv = new Mat(), res_inv = new Mat(), res = new Mat();
-		Core.bitwise_not(a, a_inv);
-		Core.add(a_inv, b, res_inv);
-		Core.bitwise_not(res_inv, res);
-		// show(res, .1);
-		return res;
+		return PixelKernels.subtract(a, b); // not(not(a) + b) in one pass
 	}
 
 	/**
@@ -172,13 +367,13 @@ public class Chip {
 	 * @return polygon defined by mj/mr_Corners
 	 */
 	private Mat drawPolygon(int id) {
-		Mat polygon = Mat.zeros(gray.size(), 0);
-		if (id == 0)
-			Imgproc.polylines(polygon, mfToLmop(mjCorners), true, new Scalar(255), 3);
-		else
-			Imgproc.polylines(polygon, mfToLmop(mrCorners), true, new Scalar(255), 3);
-		// show(mjPolygon, .1); // polygon defined by mjCorners
-		return polygon;
+		try (MatScope ms = new MatScope("drawPolygon")) {
+			Mat polygon = Mat.zeros(gray.size(), 0);
+			List<MatOfPoint> poly = ms.addAll(mfToLmop(id == 0 ? mjCorners : mrCorners));
+			Imgproc.polylines(polygon, poly, true, new Scalar(255), (int) Math.max(1, Math.round(3 * scale)));
+			// show(mjPolygon, .1); // polygon defined by mjCorners
+			return polygon;
+		}
 	}
 
 	/**
@@ -189,75 +384,134 @@ public class Chip {
 	 * @throws IOException
 	 */
 	private boolean check(MatOfPoint outer, int threshold) throws IOException {
-		MatOfPoint2f corners = cornerFinder(outer, .05);
-		if (corners.toList().size() != 4)
-			return false;
-
-		Mat panel = displayContour(outer);
-		Mat zoomIn = maskInvAdd(panel, gray);
-		List<MatOfPoint> cts = contourFinder(zoomIn, threshold);
-		MatOfPoint postu_inner = cts.get(cts.size() - 2);
-		corners = cornerFinder(outer, .05);
-		if (corners.toList().size() != 4)
-			return false;
-
-		inner = postu_inner;
-		return true;
+		long t0 = metrics.start();
+		try (MatScope ms = new MatScope("check")) {
+			MatOfPoint2f corners = ms.add(cornerFinder(outer, .05));
+			if (corners.toList().size() != 4)
+				return false;
+
+			Mat panel = ms.add(displayContour(outer));
+			Mat zoomIn = ms.add(maskInvAdd(panel, gray));
+			List<MatOfPoint> cts = ms.addAll(contourFinder(zoomIn, threshold, 2));
+			MatOfPoint postu_inner = cts.get(cts.size() - 2);
+			corners = ms.add(cornerFinder(outer, .05));
+			if (corners.toList().size() != 4)
+				return false;
+
+			MatScope.release(inner); // contour of an earlier, failed attempt
+			inner = MatScope.own(ms.keep(postu_inner), "Chip");
+			return true;
+		} finally {
+			metrics.stop(Stage.CHECK, t0);
+		}
 	}
 
+	// chip localisation and transformation
 	/**
-	 * Add scl to every pixel of img
+	 * Find corners of major and minor chip area - update mjCorners, mrCorners
 	 * 
-	 * @param img, input image
-	 * @param scl, scalar to be added
-	 * @return img added with scl
+	 * @throws IOException
 	 */
-	private Mat addToChannel(Mat img, Scalar scl) {
-		Size sz = img.size();
-		Mat addition = new Mat((int) sz.height, (int) sz.width, CvType.CV_8UC3, scl);
-		Mat res = new Mat();
-		Core.add(img, addition, res);
-		return res;
+	public void corner(int threshold) throws IOException {
+		long t0 = metrics.start();
+		try (MatScope ms = new MatScope("corner")) {
+			MatScope.release(mjCorners, mrCorners); // corners of an earlier, failed attempt
+			mjCorners = MatScope.own(orderPoint(ms.add(cornerFinder(inner, .05))), "Chip"); // 4/5 corners of chip
+			mrCorners = null;
+			Mat mjPolygon = ms.add(drawPolygon(0));
+			List<MatOfPoint> mjCt = ms.addAll(contourFinder(mjPolygon, threshold));
+			Mat mjChip = ms.add(displayContour(mjCt.get(0)));
+
+			// find minor chip corners
+			Mat chip = ms.add(displayContour(inner)); // binary image where areas outside inner are white
+			Mat mrChip = ms.add(subtract(chip, mjChip)); // chip subtract mjChip
+			double es = Math.max(2, Math.round(10 * scale)); // element size, scaled with gray
+			Mat element = ms.add(Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(es, es)));
+			Imgproc.erode(mrChip, mrChip, element); // erosion to avoid linkage between mr and mj
+			List<MatOfPoint> mrCt = ms.addAll(contourFinder(mrChip, threshold, 2));
+			mrCorners = MatScope.own(cornerFinder(mrCt.get(mrCt.size() - 2), .01), "Chip");
+		} finally {
+			metrics.stop(Stage.CORNER, t0);
+		}
 	}
 
-	// chip localisation and transformation
 	/**
-	 * Find corners of major and minor chip area - update mjCorners, mrCorners
+	 * Downscale gray so that chip is searched on a coarse image - update gray,
+	 * fine, scale
 	 * 
-	 * @throws IOException
+	 * @param edge length of the longer edge of the coarse image
 	 */
-	public void corner(int threshold) throws IOException {
-		mjCorners = orderPoint(cornerFinder(inner, .05)); // 4/5 corners of chip
-		Mat mjPolygon = drawPolygon(0);
-		List<MatOfPoint> mjCt = contourFinder(mjPolygon, threshold);
-		Mat mjChip = displayContour(mjCt.get(0));
+	private void downscale(int edge) {
+		double s = (double) edge / Math.max(gray.rows(), gray.cols());
+		if (s >= 1)
+			return;
+		fine = gray;
+		gray = MatScope.own(new Mat(), "Chip");
+		Imgproc.resize(fine, gray, new Size(), s, s, Imgproc.INTER_AREA);
+		scale = s;
+	}
 
-		// find minor chip corners
-		Mat chip = displayContour(inner); // binary image where areas outside inner are white
-		Mat mrChip = subtract(chip, mjChip); // chip subtract mjChip
-		Mat element = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(10, 10));
-		Imgproc.erode(mrChip, mrChip, element); // erosion to avoid linkage between mr and mj
-		List<MatOfPoint> mrCt = contourFinder(mrChip, threshold);
-		mrChip = displayContour(mrCt.get(mrCt.size() - 2));
-		mrCorners = cornerFinder(mrCt.get(mrCt.size() - 2), .01);
+	/**
+	 * Map corners found on the coarse image back to orig and refine the major
+	 * ones to sub-pixel accuracy on the full resolution image - update
+	 * mjCorners, mrCorners. The minor corners approximate a cut-off triangle
+	 * rather than image corners, so they are only upscaled. Nothing to do
+	 * unless in pyramid mode.
+	 */
+	public void refine() {
+		if (fine == null)
+			return;
+		mjCorners = upscale(mjCorners);
+		mrCorners = upscale(mrCorners);
+		int win = (int) Math.max(2, Math.round(1 / scale)); // a coarse pixel either side
+		TermCriteria tc = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, .01);
+		Imgproc.cornerSubPix(fine, mjCorners, new Size(win, win), new Size(-1, -1), tc);
 	}
 
 	/**
-	 * Perspectively transform chip - update restr
+	 * @param coarse corners in gray coordinates, released
+	 * @return corners in orig coordinates, in the same order
+	 */
+	private MatOfPoint2f upscale(MatOfPoint2f coarse) {
+		Point[] pts = coarse.toArray();
+		for (Point p : pts) {
+			p.x /= scale;
+			p.y /= scale;
+		}
+		MatScope.release(coarse);
+		return MatScope.own(new MatOfPoint2f(pts), "Chip");
+	}
+
+	/**
+	 * Perspectively transform chip - update restr. With a sampler in the
+	 * options, only the regions later stages read are sampled from orig.
 	 * 
 	 * @throws IOException
 	 */
 	public void chipTransform() throws IOException {
-		PersTransformation pt = new PersTransformation(orig, 420, mjCorners, mrCorners);
-		pt.cornerTag();
-		Mat warp = pt.transform();
-
-		// black-out the top right triangle
-		Mat a = new Mat(), thresh = new Mat(), restr_inv = new Mat();
-		Core.bitwise_not(warp, a);
-		Imgproc.threshold(a, thresh, 200, 255, 0);
-		Core.add(thresh, a, restr_inv);
-		Core.bitwise_not(restr_inv, restr);
+		long t0 = metrics.start();
+		if (options.sampler != null) {
+			try {
+				options.sampler.sample(orig, mjCorners, mrCorners, restr);
+			} finally {
+				metrics.stop(Stage.TRANSFORM, t0);
+			}
+			return;
+		}
+		try (MatScope ms = new MatScope("chipTransform")) {
+			PersTransformation pt = new PersTransformation(orig, layout.edge(), mjCorners, mrCorners);
+			pt.cornerTag();
+			Mat warp = ms.add(pt.transform());
+
+			// black-out the top right triangle
+			Mat a = ms.add(new Mat()), thresh = ms.add(new Mat()), restr_inv = ms.add(new Mat());
+			Core.bitwise_not(warp, a);
+			Imgproc.threshold(a, thresh, 200, 255, 0);
+			Core.add(thresh, a, restr_inv);
+			Core.bitwise_not(restr_inv, restr);
+		} finally {
+			metrics.stop(Stage.TRANSFORM, t0);
+		}
 	}
 
 	/**
@@ -269,16 +523,59 @@ public class Chip {
 	 * @throws IOException
 	 */
 	public int recur(int threshold) throws IOException {
-		List<MatOfPoint> sortedContour = contourFinder(gray, threshold);
-		int n = sortedContour.size(), i = n - 1, ct = 0;
-		while (ct <= 3) {
-			ct++;
-			MatOfPoint outer = sortedContour.get(i);
+		long t0 = metrics.start();
+		try (MatScope ms = new MatScope("recur")) {
+			List<MatOfPoint> sortedContour = ms.addAll(contourFinder(gray, threshold, 1));
+			// only the largest contour is a chip candidate - the original loop checked it four times over, and
+			// accepting smaller ones locates chips on the wrong contour at too low a threshold
+			if (sortedContour.isEmpty())
+				return 0;
+			MatOfPoint outer = sortedContour.get(sortedContour.size() - 1);
 			boolean reach = check(outer, threshold); // update inner
-			if (reach)
-				return 1;
+			return reach ? 1 : 0;
+		} finally {
+			metrics.stop(Stage.RECUR, t0);
 		}
-		return 0;
+	}
+
+	/**
+	 * Thresholding values swept for each L channel increment, in trial order
+	 * 
+	 * @param graymean mean intensity of gray
+	 * @return 100, 110, ... as long as the previous value does not exceed graymean
+	 */
+	protected List<Integer> thresholds(int graymean) {
+		List<Integer> res = new ArrayList<Integer>();
+		for (int thre = 90; thre <= graymean;) {
+			thre += 10;
+			res.add(thre);
+		}
+		return res;
+	}
+
+	/**
+	 * Try to locate and transform chip with given threshold - update inner,
+	 * mjCorners, mrCorners, restr
+	 * 
+	 * @param thre thresholding value for contour detection
+	 * @return whether chip passes contour check and can be transformed
+	 * @throws IOException
+	 */
+	protected boolean attempt(int thre) throws IOException {
+		metrics.count(Counter.CANDIDATES, 1);
+		int isChip = recur(thre);
+		// pass two contour check
+		if (isChip == 0)
+			return false;
+		// transform
+		try {
+			corner(thre);
+			refine();
+			chipTransform();
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
 	}
 
 	/**
@@ -290,40 +587,191 @@ public class Chip {
 	 * @throws IOException
 	 */
 	public int readin() throws IOException {
-		this.orig = Imgcodecs.imread(filename);
-		this.gray = new Mat();
-		Imgproc.cvtColor(orig, this.gray, Imgproc.COLOR_BGR2GRAY);
-
-		Mat lab = new Mat();
-		Imgproc.cvtColor(orig, lab, Imgproc.COLOR_BGR2Lab);
-		Scalar gms = Core.mean(gray);
-		int graymean = (int) gms.val[0], ct = 0;
-		// increment L channel by 10 at each iteration
-		while (ct++ <= 10) {
-			lab = addToChannel(lab, new Scalar(0, 0, 10));
-			Mat cp = new Mat();
-			Imgproc.cvtColor(lab, cp, Imgproc.COLOR_Lab2BGR);
-			int thre = 90;
-			// increment threshold value by 10 at each iteration
-			while (thre <= graymean) {
-				thre += 10;
-				int isChip = recur(thre);
-				// pass two contour check
-				if (isChip == 0)
-					continue;
-				// transform
-				try {
-					corner(thre);
-					chipTransform();
-				} catch (Exception e) {
-					continue;
+		long t0 = metrics.start();
+		try {
+			ChipResult cached = null;
+			if (orig == null) {
+				MappedByteBuffer data = ImageSource.map(Paths.get(filename));
+				if (options.cache != null) { // hash the bytes the image is decoded from
+					cacheKey = ResultCache.key(data, layout, options, start());
+					cached = options.cache.lookup(cacheKey);
 				}
+				if (options.triage != null && (cached == null || !cached.located))
+					triage(data); // before paying for the full decode
+				long td = metrics.start();
+				this.orig = MatScope.own(ImageSource.read(data, filename, options.reduction), "Chip");
+				metrics.stop(Stage.DECODE, td);
+			}
+			if (resume(cached))
 				return 1;
+
+			if (gray == null) { // unless handed in with orig, e.g. cut out of a tray's gray image
+				this.gray = MatScope.own(new Mat(), "Chip");
+				Imgproc.cvtColor(orig, this.gray, Imgproc.COLOR_BGR2GRAY);
 			}
+			if (options.pyramidEdge > 0)
+				downscale(options.pyramidEdge);
+			return sweep();
+		} finally {
+			metrics.stop(Stage.READIN, t0);
+		}
+	}
+
+	/**
+	 * @return threshold the sweep starts from - the one learned for the
+	 *         acquisition profile, else the hint, null if neither
+	 */
+	private Integer start() {
+		String profile = options.profiles == null || filename == null ? null : ProfileStore.profileOf(filename);
+		int[] learned = profile == null ? null : options.profiles.lookup(profile);
+		return learned != null ? Integer.valueOf(learned[1]) : hint > 0 ? Integer.valueOf(hint) : null;
+	}
+
+	/**
+	 * Skip the sweep with the corners of an earlier analysis of the same image
+	 * - update mjCorners, mrCorners, boost, threshold, restr
+	 * 
+	 * @param cached cached result, may be null
+	 * @return whether the cached corners could be transformed
+	 * @throws IOException
+	 */
+	private boolean resume(ChipResult cached) throws IOException {
+		if (cached == null || !cached.located)
+			return false;
+		resumed = true;
+		mjCorners = MatScope.own(new MatOfPoint2f(ChipResult.points(cached.mjCorners)), "Chip");
+		mrCorners = MatScope.own(new MatOfPoint2f(ChipResult.points(cached.mrCorners)), "Chip");
+		boost = cached.boost;
+		threshold = cached.threshold;
+		try {
+			chipTransform();
+			return true;
+		} catch (Exception e) { // same policy as attempt, search from scratch instead
+			MatScope.release(mjCorners, mrCorners);
+			mjCorners = mrCorners = null;
+			resumed = false;
+			return false;
+		}
+	}
+
+	/**
+	 * Sweep thresholds until chip is located. The sweep used to be repeated
+	 * for 11 L channel increments, but the contour search runs on gray, which
+	 * the increments never reached: a threshold failing at the first increment
+	 * fails at every later one, so a single pass decides the same.
+	 * 
+	 * @return 1 if chip was located, 0 otherwise
+	 * @throws IOException
+	 */
+	private int sweep() throws IOException {
+		Scalar gms = Core.mean(gray);
+		int graymean = (int) gms.val[0];
+		// start from the setting learned for this acquisition profile, if any
+		String profile = options.profiles == null || filename == null ? null : ProfileStore.profileOf(filename);
+		if (seed != null && seeded())
+			return learn(profile, 1);
+		Integer start = start();
+		List<Integer> thresholds = ProfileStore.outward(thresholds(graymean), start);
+		if (start != null && start == hint && !thresholds.contains(hint)) { // a tray's Otsu value before its neighbours
+			thresholds = new ArrayList<Integer>(thresholds);
+			thresholds.add(0, hint);
+		}
+		if (options.triage != null)
+			thresholds = triage(thresholds);
+		if (options.searchPool != null)
+			return learn(profile, new SpeculativeSearch(this, options.searchPool).run(thresholds));
+		// increment threshold value by 10 at each iteration
+		for (int thre : thresholds) {
+			if (!attempt(thre))
+				continue;
+			boost = 1; // located at the first L channel increment, as any success is
+			threshold = thre;
+			return learn(profile, 1);
 		}
 		return 0;
 	}
 
+	/**
+	 * Locate chip on the inner border contour handed in by the caller instead
+	 * of searching it - update inner, mjCorners, mrCorners, restr, boost,
+	 * threshold
+	 * 
+	 * @return whether the contour could be transformed
+	 */
+	private boolean seeded() {
+		metrics.count(Counter.CANDIDATES, 1);
+		Point[] pts = seed.toArray();
+		for (Point p : pts) { // into gray coordinates
+			p.x *= scale;
+			p.y *= scale;
+		}
+		MatScope.release(seed, inner);
+		seed = null;
+		inner = MatScope.own(new MatOfPoint(pts), "Chip");
+		try {
+			corner(hint);
+			refine();
+			chipTransform();
+		} catch (Exception e) { // the sweep decides
+			return false;
+		}
+		boost = 1;
+		threshold = hint;
+		return true;
+	}
+
+	/**
+	 * Reject the image if its quality checks fail on a preview decoded at
+	 * 1/PREVIEW resolution, before the full decode - update verdict
+	 * 
+	 * @param data encoded image
+	 * @throws IOException if data cannot be decoded
+	 */
+	private void triage(MappedByteBuffer data) throws IOException {
+		long t0 = metrics.start();
+		try (MatScope ms = new MatScope("triage")) {
+			Mat preview = ms.add(new Mat());
+			Imgproc.cvtColor(ms.add(ImageSource.read(data, filename, PREVIEW)), preview, Imgproc.COLOR_BGR2GRAY);
+			verdict = options.triage.assess(preview, thresholds((int) Core.mean(preview).val[0]));
+		} finally {
+			metrics.stop(Stage.TRIAGE, t0);
+		}
+		if (!verdict.pass())
+			throw new IllegalArgumentException("Image rejected by triage: " + verdict.reason());
+	}
+
+	/**
+	 * Reject gray if its quality checks fail, before any sweep candidate ran,
+	 * unless the preview was triaged already - update verdict
+	 * 
+	 * @param thresholds sweep candidates in trial order
+	 * @return candidates in the order the triage suggests
+	 */
+	private List<Integer> triage(List<Integer> thresholds) {
+		if (verdict == null) { // image handed in decoded, e.g. cut out of a tray
+			long t0 = metrics.start();
+			verdict = options.triage.assess(gray, thresholds);
+			metrics.stop(Stage.TRIAGE, t0);
+			if (!verdict.pass())
+				throw new IllegalArgumentException("Image rejected by triage: " + verdict.reason());
+		}
+		return verdict.order(thresholds);
+	}
+
+	/**
+	 * Record winning setting of the sweep for given acquisition profile
+	 * 
+	 * @param profile acquisition profile of the image, null if none
+	 * @param located result of the sweep
+	 * @return located
+	 * @throws IOException
+	 */
+	private int learn(String profile, int located) throws IOException {
+		if (located == 1 && profile != null)
+			options.profiles.record(profile, boost, threshold);
+		return located;
+	}
+
 	/**
 	 * Remediate restr to black-out residual black borders and flash glares.
 	 * Necessary to perform, but can be inaccurate, improvements needed.
@@ -331,98 +779,205 @@ public class Chip {
 	 * @throws IOException
 	 */
 	public void remediate() throws IOException {
-		// prepare L channel image
-		Mat lab = new Mat(), lc = new Mat(), lc_inv = new Mat();
-		Imgproc.cvtColor(restr, lab, Imgproc.COLOR_BGR2Lab);
-		Core.extractChannel(lab, lc, 0); // get L channel
-		Core.bitwise_not(lc, lc_inv);
-
-		// evaluate local brightness, dividing L channel chip evenly into four blocks
-		double meanll = 256, meanlh = 0;
-		for (int rlo = 0; rlo <= size[0] / 2; rlo += size[0] / 2 + 1) { // low bound for row number
-			for (int clo = 0; clo <= size[1] / 2; clo += size[1] / 2 + 1) { // ... column ...
-				int rhi = rlo + size[0] / 2, chi = clo + size[1] / 2; // high bound ...
-				Mat cur = lc.submat(rlo, rhi, clo, chi);
+		long t0 = metrics.start();
+		try (MatScope ms = new MatScope("remediate")) {
+			// prepare L channel image
+			Mat lab = ms.add(new Mat()), lc = ms.add(new Mat()), lc_inv = ms.add(new Mat());
+			Imgproc.cvtColor(restr, lab, Imgproc.COLOR_BGR2Lab);
+			Core.extractChannel(lab, lc, 0); // get L channel
+			Core.bitwise_not(lc, lc_inv);
+
+			// evaluate local brightness, dividing L channel chip evenly into four blocks
+			double meanll = 256, meanlh = 0;
+			for (int[] q : layout.quadrants()) { // top, bottom, left, right
+				Mat cur = ms.add(lc.submat(q[0], q[1], q[2], q[3]));
 				MinMaxLocResult mmlr = Core.minMaxLoc(cur);
 				meanll = Math.min(meanll, mmlr.minVal);
 				meanlh = Math.max(meanlh, mmlr.maxVal);
 			}
-		}
 
-		// derive threshold value
-		double thb = 80, thg = 205; // empirically decided border/glare threshold
-		if (meanll >= 80) // if the image is too dark, can hardly discern border
-			thb = meanll - (meanll - 80) * .6;
-		if (meanlh < 205) // if image too bright, can hardly discern glare
-			thg = thg - (205 - meanlh);
-
-		// thresholding
-		Mat borderMask = new Mat(), glareMask = new Mat();
-		Mat mask = new Mat(lc.size(), CvType.CV_8UC1, new Scalar(255));
-		// border mask
-		Imgproc.threshold(lc, borderMask, thb, 1, 0); // pixels originally >/<= thb are converted to 1/0
-		ImageKit ik = new ImageKit(borderMask, 1);
-		Core.multiply(borderMask, mask, mask);
-		// glare mask
-		Imgproc.threshold(lc_inv, glareMask, 255 - thg, 1, 0); // pixels originally </>= thb are converted to 1/0
-		Core.multiply(glareMask, mask, mask);
-		ik.show(mask);
-		// apply mask
-		Imgproc.cvtColor(mask, mask, Imgproc.COLOR_GRAY2BGR);
-		remediated = maskInvAdd(restr, mask);
-		// ik.show(remediated);
-		// System.out.println(thg + " " + thb + " " + meanll + " " + meanlh);
+			// derive threshold value
+			double thb = 80, thg = 205; // empirically decided border/glare threshold
+			if (meanll >= 80) // if the image is too dark, can hardly discern border
+				thb = meanll - (meanll - 80) * .6;
+			if (meanlh < 205) // if image too bright, can hardly discern glare
+				thg = thg - (205 - meanlh);
+
+			// thresholding
+			Mat borderMask = ms.add(new Mat()), glareMask = ms.add(new Mat());
+			Mat mask = ms.add(new Mat(lc.size(), CvType.CV_8UC1, new Scalar(255)));
+			// border mask
+			Imgproc.threshold(lc, borderMask, thb, 1, 0); // pixels originally >/<= thb are converted to 1/0
+			Core.multiply(borderMask, mask, mask);
+			// glare mask
+			Imgproc.threshold(lc_inv, glareMask, 255 - thg, 1, 0); // pixels originally </>= thb are converted to 1/0
+			Core.multiply(glareMask, mask, mask);
+			if (options.debug != null)
+				options.debug.write(filename, "mask", mask);
+			// apply mask
+			Imgproc.cvtColor(mask, mask, Imgproc.COLOR_GRAY2BGR);
+			MatScope.release(remediated);
+			remediated = MatScope.own(maskInvAdd(restr, mask), "Chip");
+			// System.out.println(thg + " " + thb + " " + meanll + " " + meanlh);
+		} finally {
+			metrics.stop(Stage.REMEDIATE, t0);
+		}
 	}
 
 	// block segmentation
 	/**
-	 * Segment restr into rw * cl blocks - update blocks, assem
+	 * Segment restr into rw * cl blocks and evaluate them - update blocks,
+	 * normBlocks, blockValue, majorPeaks
 	 * 
 	 * @throws IOException
 	 */
 	public void blockize() throws IOException {
-		for (int rid = 0; rid < size[0]; rid++) {
-			for (int cid = 0; cid < size[1]; cid++) {
-				int id = rid * size[1] + cid;
-				int x = size[2] + cid * size[4] + (2 * cid + 1) * size[8];
-				int y = size[3] + rid * size[5] + (2 * rid + 1) * size[8];
-				int a = rid == size[0] - 1 ? size[9] : y + size[7]; // special treatment for last row
-				
-				// segment and reassemble - update blocks & assem
-				Mat block = restr.submat(y - size[7], a, x - size[6], x + size[6]); // top, bottom, left, right boundary
-				blocks[id] = block;
-				blocks[id].copyTo(assem.submat(y - size[7], a, x - size[6], x + size[6])); // assemble blocks back to intact chip
-				
-				// derive block infomation
-				ImageKit ik = new ImageKit(block, 1, 7);
-				normBlocks[id] = ik.norm; // normalised block
+		blockize(true);
+	}
+
+	/**
+	 * Segment restr into rw * cl blocks and evaluate them - update blocks,
+	 * blockValue, majorPeaks and, if asked for, normBlocks
+	 * 
+	 * @param normalise whether to derive normBlocks, left null otherwise
+	 * @throws IOException
+	 */
+	public void blockize(boolean normalise) throws IOException {
+		long t0 = metrics.start();
+		try {
+			BlockStats bs = layout.stats(restr.rows(), restr.cols());
+			for (int id = 0; id < blocks.length; id++) {
+				// segment - update blocks
+				int[] r = bs.rects[id]; // top, bottom, left, right boundary
+				MatScope.release(blocks[id], normBlocks[id]);
+				blocks[id] = MatScope.own(restr.submat(r[0], r[1], r[2], r[3]), "Chip");
+				normBlocks[id] = null;
+			}
+			if (bs.fused()) { // all blocks in one pass over restr
+				bs.measure(restr, 7, blockValue, majorPeaks, normalise ? normBlocks : null);
+				if (normalise)
+					MatScope.ownAll(Arrays.asList(normBlocks), "Chip");
+				return;
+			}
+			// overlapping layout - derive block infomation one by one
+			for (int id = 0; id < blocks.length; id++) {
+				ImageKit ik = new ImageKit(blocks[id], 1, 7, normalise);
+				if (normalise)
+					normBlocks[id] = MatScope.own(ik.norm, "Chip"); // normalised block
 				blockValue[id] = ik.repreValue; // representative value of spot in current block
+				for (int c = 0; c < 3; c++)
+					majorPeaks[id][c] = ik.hists[c].majorPeakInten;
 			}
+		} finally {
+			metrics.stop(Stage.BLOCKIZE, t0);
+		}
+	}
+
+	/**
+	 * Reassemble blocks to an intact chip - update assem
+	 */
+	public void assemble() {
+		MatScope.release(assem);
+		assem = MatScope.own(new Mat(restr.size(), CvType.CV_8UC3, new Scalar(0, 0, 0)), "Chip");
+		for (int id = 0; id < blocks.length; id++) {
+			int[] r = layout.rect(id);
+			Mat dst = assem.submat(r[0], r[1], r[2], r[3]);
+			blocks[id].copyTo(dst);
+			dst.release();
 		}
 	}
 
 	// All in one
 	public void solve() throws IOException {
+		localise();
+		measure();
+		if (cacheKey != null && !resumed) {
+			try {
+				options.cache.store(cacheKey, ChipResult.of(this, 0));
+			} catch (IOException e) { // the analysis itself succeeded, it is only searched again next time
+			}
+		}
+		// Imgcodecs.imwrite("spot.jpg", a);
+	}
+
+	/**
+	 * Read in image, locate and transform chip - update orig, gray, inner,
+	 * mjCorners, mrCorners, restr
+	 * 
+	 * @throws IOException
+	 */
+	public void localise() throws IOException {
 		int success = readin();
 		if (success == 0)
 			throw new IllegalArgumentException(
 					"Image cannot be transformed, please ensure the border is not interrupted by glare");
-		assem = new Mat(restr.size(), CvType.CV_8UC3, new Scalar(0, 0, 0));
+	}
+
+	/**
+	 * Solve, releasing the chip if it fails since nobody else can
+	 * 
+	 * @throws IOException
+	 */
+	private void solveOrRelease() throws IOException {
+		ChipMetrics prev = metrics.attach();
+		long t0 = metrics.start();
+		boolean located = false;
+		try {
+			solve();
+			located = true;
+		} catch (IOException | RuntimeException e) {
+			release();
+			throw e;
+		} finally {
+			metrics.stop(Stage.TOTAL, t0);
+			if (located && metrics.enabled()) // released by the caller, after the record is finished
+				metrics.count(Counter.RETAINED_BYTES, MatScope.bytes(orig, gray, fine, remediated, assem, inner,
+						mjCorners, mrCorners, restr) + MatScope.bytes(blocks) + MatScope.bytes(normBlocks));
+			metrics.finish(filename, located);
+			ChipMetrics.detach(prev);
+		}
+	}
+
+	/**
+	 * Segment and evaluate the transformed chip - update blocks, normBlocks,
+	 * blockValue, majorPeaks, assem, remediated
+	 * 
+	 * @throws IOException
+	 */
+	public void measure() throws IOException {
 		blockize();
+		assemble();
 		remediate();
-		// Imgcodecs.imwrite("spot.jpg", a);
+	}
+
+	/**
+	 * Free native memory of all images held by the chip, the chip is unusable
+	 * afterwards
+	 */
+	public void release() {
+		if (blocks != null) {
+			MatScope.release(blocks);
+			MatScope.release(normBlocks);
+		}
+		releaseLocalisation();
+		MatScope.release(orig, gray, fine, remediated, assem, seed);
+	}
+
+	/**
+	 * Free native memory of the localisation results only, orig and gray are
+	 * kept as a trial chip shares them with its source
+	 */
+	protected void releaseLocalisation() {
+		MatScope.release(inner, mjCorners, mrCorners, restr);
 	}
 
 	public static void main(String[] args) throws IOException {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
-		String[] nms = { "D:/Software/Python37/wd/2018-19FYP/chip_v2/Benchmarking/20190305/version2/1-orig/light3/t1l3_20190305_18_lighttray_900lux_1min_TET0.5.jpg",
-				         "D:/Software/Python37/wd/2018-19FYP/chip_v2/Benchmarking/20190305/version2/1-orig/light1/t1l1_20190305_07_bench_330lux_4min_AMP2.jpg",
-				         "D:/Software/Python37/wd/2018-19FYP/chip_v2/Benchmarking/20190305/version2/1-orig/light1/t1l1_20190305_35_bench_330lux_3min_LB.jpg"
-				       };
 		int[] size = { 7, 6, 20, 27, 40, 30, 35, 30, 15, 420 };
+		String nm = args.length > 0 ? args[0] : SyntheticChip.sample(size);
 		
 		// TEST
-		Chip chip = new Chip(nms[2], size);
+		Chip chip = new Chip(nm, size);
 		System.out.println(chip.mjCorners.toList().toString());
 		System.out.println(chip.mrCorners.toList().toString());
 		
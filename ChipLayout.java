@@ -0,0 +1,199 @@
+package image_procs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opencv.core.Point;
+
+/**
+ * Geometry of one chip design compiled from its size array (see Chip): block
+ * rectangles, the quadrants remediate evaluates, the perspective target of
+ * the transform and, per transformed image size, the block label map. A
+ * layout is immutable and compiled once per design, so every chip and thread
+ * of the process shares it. Designs can be registered under a name, e.g.
+ * from a properties file, to add chip formats without code changes.
+ */
+public final class ChipLayout {
+
+	// compiled layouts by size array, and registered ones by name
+	private static final Map<String, ChipLayout> COMPILED = new ConcurrentHashMap<String, ChipLayout>();
+	private static final Map<String, ChipLayout> NAMED = new ConcurrentHashMap<String, ChipLayout>();
+
+	// layout of the 7 x 6 chip the analyser was written for
+	public static final ChipLayout DEFAULT = register("default", of(new int[] { 7, 6, 20, 27, 40, 30, 35, 30, 15, 420 }));
+
+	// given
+	private final int[] size; // design data of the chip
+
+	// derived
+	private final int[][] rects; // top, bottom, left, right boundary of each block, row major
+	private final int[][] quadrants; // top, bottom, left, right of the quadrants remediate evaluates
+	private final Map<Long, BlockStats> stats; // label maps per transformed image size, rows << 32 | cols
+
+	private ChipLayout(int[] size) {
+		this.size = size;
+		rects = new int[size[0] * size[1]][];
+		for (int rid = 0; rid < size[0]; rid++) {
+			for (int cid = 0; cid < size[1]; cid++) {
+				int x = size[2] + cid * size[4] + (2 * cid + 1) * size[8];
+				int y = size[3] + rid * size[5] + (2 * rid + 1) * size[8];
+				int a = rid == size[0] - 1 ? size[9] : y + size[7]; // special treatment for last row
+				rects[rid * size[1] + cid] = new int[] { y - size[7], a, x - size[6], x + size[6] };
+			}
+		}
+		// bounds of remediate's original loop over the top left size[0] x size[1] pixels - its step of
+		// size / 2 + 1 always passes the bound size / 2, so it visits the top left quadrant only
+		List<int[]> qs = new ArrayList<int[]>();
+		for (int rlo = 0; rlo <= size[0] / 2; rlo += size[0] / 2 + 1) // low bound for row number
+			for (int clo = 0; clo <= size[1] / 2; clo += size[1] / 2 + 1) // ... column ...
+				qs.add(new int[] { rlo, rlo + size[0] / 2, clo, clo + size[1] / 2 });
+		quadrants = qs.toArray(new int[qs.size()][]);
+		stats = new ConcurrentHashMap<Long, BlockStats>();
+	}
+
+	/**
+	 * @param size design data of the chip
+	 * @return compiled layout, shared by all callers with the same design
+	 */
+	public static ChipLayout of(int[] size) {
+		if (size == null || size.length != 10)
+			throw new IllegalArgumentException("Chip size needs 10 values, got " + Arrays.toString(size));
+		if (size[0] < 1 || size[1] < 1 || size[9] < 1)
+			throw new IllegalArgumentException("Chip size needs positive rows, columns and edge: "
+					+ Arrays.toString(size));
+		return COMPILED.computeIfAbsent(Arrays.toString(size), k -> new ChipLayout(size.clone()));
+	}
+
+	/**
+	 * @param spec name of a registered layout, or 10 comma separated values
+	 * @return compiled layout
+	 */
+	public static ChipLayout parse(String spec) {
+		ChipLayout named = NAMED.get(spec.trim());
+		if (named != null)
+			return named;
+		String[] parts = spec.split(",");
+		if (parts.length != 10)
+			throw new IllegalArgumentException("Unknown chip layout " + spec);
+		int[] size = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			size[i] = Integer.parseInt(parts[i].trim());
+		return of(size);
+	}
+
+	/**
+	 * @param name   name the layout is looked up by in parse
+	 * @param layout compiled layout
+	 * @return layout
+	 */
+	public static ChipLayout register(String name, ChipLayout layout) {
+		NAMED.put(name, layout);
+		return layout;
+	}
+
+	/**
+	 * Register every layout of a properties file, each entry being
+	 * name = 7,6,20,27,40,30,35,30,15,420
+	 *
+	 * @param file properties file
+	 * @return number of layouts registered
+	 * @throws IOException
+	 */
+	public static int load(Path file) throws IOException {
+		Properties props = new Properties();
+		try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(r);
+		}
+		for (String name : props.stringPropertyNames())
+			register(name, parse(props.getProperty(name)));
+		return props.size();
+	}
+
+	/**
+	 * @return design data of the chip, a copy
+	 */
+	public int[] size() {
+		return size.clone();
+	}
+
+	public int rows() {
+		return size[0];
+	}
+
+	public int cols() {
+		return size[1];
+	}
+
+	public int blocks() {
+		return rects.length;
+	}
+
+	/**
+	 * @return edge length of the transformed chip
+	 */
+	public int edge() {
+		return size[9];
+	}
+
+	/**
+	 * @param id block id, row major
+	 * @return top, bottom, left, right boundary of the block, a copy
+	 */
+	public int[] rect(int id) {
+		return rects[id].clone();
+	}
+
+	/**
+	 * @return boundaries of all blocks in id order, a copy
+	 */
+	public int[][] rects() {
+		int[][] res = new int[rects.length][];
+		for (int id = 0; id < rects.length; id++)
+			res[id] = rects[id].clone();
+		return res;
+	}
+
+	/**
+	 * @return top, bottom, left, right of the quadrants remediate evaluates
+	 *         local brightness on, a copy
+	 */
+	public int[][] quadrants() {
+		int[][] res = new int[quadrants.length][];
+		for (int q = 0; q < quadrants.length; q++)
+			res[q] = quadrants[q].clone();
+		return res;
+	}
+
+	/**
+	 * @return corners of the transformed chip the major corners are mapped to,
+	 *         clockwise from top left
+	 */
+	public Point[] target() {
+		int e = edge();
+		return new Point[] { new Point(0, 0), new Point(e, 0), new Point(e, e), new Point(0, e) };
+	}
+
+	/**
+	 * @param rows/cols size of the transformed chip image
+	 * @return block label map for that size, built once
+	 */
+	public BlockStats stats(int rows, int cols) {
+		return stats.computeIfAbsent((long) rows << 32 | cols, k -> new BlockStats(this, rows, cols));
+	}
+
+	/**
+	 * @return design data as parse accepts it
+	 */
+	@Override
+	public String toString() {
+		return Arrays.toString(size).replaceAll("[\\[\\] ]", "");
+	}
+}
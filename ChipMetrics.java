@@ -0,0 +1,178 @@
+package image_procs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ChipMetrics {
+
+	/**
+	 * Timed stages of the pipeline, recur/check are timed per attempt
+	 */
+	public enum Stage {
+		DECODE, READIN, RECUR, CHECK, CORNER, TRANSFORM, BLOCKIZE, REMEDIATE, TOTAL, TRIAGE;
+
+		public String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * Counters of search effort and memory traffic
+	 */
+	public enum Counter {
+		CANDIDATES, // (boost, threshold) candidates tried
+		CONTOUR_CALLS, // findContours calls
+		CONTOURS, // contours produced by all findContours calls
+		MAX_CONTOURS, // most contours produced by a single call
+		RELEASED_BYTES, // native bytes of the Mats released while analysing, submats excluded
+		RETAINED_BYTES; // native bytes of the images the chip still holds when analysis ends
+
+		public String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	// shared instance of a chip without metrics, all calls return immediately
+	public static final ChipMetrics DISABLED = new ChipMetrics(null);
+
+	// metrics of the image analysed by the current thread, for MatScope
+	private static final ThreadLocal<ChipMetrics> CURRENT = new ThreadLocal<ChipMetrics>();
+
+	// given
+	protected MetricsRegistry registry; // aggregate the record is reported to, null if disabled
+
+	// derived
+	protected AtomicLongArray nanos; // time spent per stage, summed over attempts
+	protected AtomicLongArray calls; // number of times each stage ran
+	protected AtomicLongArray counters; // search effort, by Counter
+	protected String filename; // image the record belongs to
+	protected boolean located; // whether the chip was analysed successfully
+
+	public ChipMetrics(MetricsRegistry registry) {
+		this.registry = registry;
+		if (registry == null)
+			return;
+		nanos = new AtomicLongArray(Stage.values().length);
+		calls = new AtomicLongArray(Stage.values().length);
+		counters = new AtomicLongArray(Counter.values().length);
+	}
+
+	public boolean enabled() {
+		return registry != null;
+	}
+
+	/**
+	 * @return start time of a stage, 0 when disabled
+	 */
+	public long start() {
+		return registry == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Account time since t0 to given stage
+	 *
+	 * @param stage stage that ran
+	 * @param t0    value returned by start()
+	 */
+	public void stop(Stage stage, long t0) {
+		if (registry == null)
+			return;
+		long dt = System.nanoTime() - t0;
+		nanos.addAndGet(stage.ordinal(), dt);
+		calls.incrementAndGet(stage.ordinal());
+		registry.observe(stage, dt);
+	}
+
+	/**
+	 * @param c counter to be incremented
+	 * @param n increment
+	 */
+	public void count(Counter c, long n) {
+		if (registry == null)
+			return;
+		counters.addAndGet(c.ordinal(), n);
+	}
+
+	/**
+	 * Account the contours produced by one findContours call
+	 *
+	 * @param n number of contours
+	 */
+	public void contours(int n) {
+		if (registry == null)
+			return;
+		counters.incrementAndGet(Counter.CONTOUR_CALLS.ordinal());
+		counters.addAndGet(Counter.CONTOURS.ordinal(), n);
+		counters.accumulateAndGet(Counter.MAX_CONTOURS.ordinal(), n, Math::max);
+		registry.observeContours(n);
+	}
+
+	/**
+	 * Make this the record native bytes released on the calling thread are
+	 * accounted to
+	 *
+	 * @return record previously attached to the thread, to be restored by detach
+	 */
+	public ChipMetrics attach() {
+		ChipMetrics prev = CURRENT.get();
+		if (registry != null)
+			CURRENT.set(this);
+		return prev;
+	}
+
+	/**
+	 * @param prev record returned by attach
+	 */
+	public static void detach(ChipMetrics prev) {
+		if (prev == null)
+			CURRENT.remove();
+		else
+			CURRENT.set(prev);
+	}
+
+	/**
+	 * @return record attached to the calling thread, null if none
+	 */
+	public static ChipMetrics current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Close the record and report it to the registry
+	 *
+	 * @param filename image the record belongs to
+	 * @param located  whether the chip was analysed successfully
+	 */
+	public void finish(String filename, boolean located) {
+		if (registry == null)
+			return;
+		this.filename = filename;
+		this.located = located;
+		registry.record(this);
+	}
+
+	public long nanos(Stage s) {
+		return registry == null ? 0 : nanos.get(s.ordinal());
+	}
+
+	public long calls(Stage s) {
+		return registry == null ? 0 : calls.get(s.ordinal());
+	}
+
+	public long counter(Counter c) {
+		return registry == null ? 0 : counters.get(c.ordinal());
+	}
+
+	/**
+	 * @return the per image record as a single line of JSON
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"file\":").append(filename == null ? "null" : MetricsRegistry.quote(filename));
+		sb.append(",\"located\":").append(located);
+		for (Stage s : Stage.values())
+			sb.append(",\"").append(s.label()).append("_ms\":").append(String.format("%.3f", nanos(s) / 1e6));
+		for (Counter c : Counter.values())
+			sb.append(",\"").append(c.label()).append("\":").append(counter(c));
+		return sb.append(",\"checks\":").append(calls(Stage.CHECK)).append('}').toString();
+	}
+}
@@ -0,0 +1,148 @@
+package image_procs;
+
+import java.util.concurrent.ExecutorService;
+
+public class ChipOptions {
+
+	// ingestion
+	protected int reduction = 1; // decode images at 1/reduction of their resolution - 1, 2, 4 or 8
+	protected ResultCache cache; // corners of images analysed before, null - always search
+
+	// chip localisation
+	protected Triage triage; // rejects hopeless images before the sweep, null - sweep every image
+	protected ExecutorService searchPool; // evaluate sweep candidates speculatively on this pool, null - sequential
+	protected ProfileStore profiles; // learned sweep starting points per acquisition profile, null - full sweep
+	protected int pyramidEdge; // longer edge of the image chip is searched on, 0 - full resolution
+	protected RoiSampler sampler; // samples the transformed chip regions from orig, null - full warp
+
+	// instrumentation
+	protected MetricsRegistry metrics; // aggregate per stage metrics are reported to, null - disabled
+	protected DebugSink debug; // writes intermediate images to disk in the background, null - none
+
+	/**
+	 * @return every option that can change the corners or block values of a
+	 *         chip, e.g. for cache keys - search pool and instrumentation are
+	 *         left out, speculative trials commit in sweep order
+	 */
+	protected String signature() {
+		return "reduce=" + reduction + ",pyramid=" + pyramidEdge
+				+ ",sampler=" + (sampler == null ? "warp" : sampler.edge + ":" + sampler.tolerance)
+				+ ",triage=" + (triage == null ? "none"
+						: triage.edge + ":" + triage.minSharpness + ":" + triage.maxGlare + ":" + triage.minInner);
+	}
+
+	/**
+	 * Decode image files at a reduced resolution, which is much faster for
+	 * large JPEGs. Corners are then in coordinates of the reduced image, the
+	 * factor is recorded in ChipResult.reduction.
+	 * 
+	 * @param factor 1 for full resolution, 2, 4 or 8
+	 * @return this
+	 */
+	public ChipOptions reduce(int factor) {
+		ImageSource.flags(factor); // reject unsupported factors here rather than per image
+		reduction = factor;
+		return this;
+	}
+
+	/**
+	 * Look up the corners of images read from file in cache before searching,
+	 * and cache those of newly solved ones
+	 * 
+	 * @param cache result cache, null to always search
+	 * @return this
+	 */
+	public ChipOptions cache(ResultCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Check image quality on a downscaled copy before the readin sweep, reject
+	 * hopeless images with the reason and try thresholds the border looks
+	 * intact at first
+	 * 
+	 * @param triage quality checks, null to sweep every image
+	 * @return this
+	 */
+	public ChipOptions triage(Triage triage) {
+		this.triage = triage;
+		return this;
+	}
+
+	/**
+	 * Evaluate (L boost, threshold) candidates of the readin sweep in parallel.
+	 * The pool must not be the one running the Chip itself, as readin blocks on
+	 * the candidates it submits.
+	 * 
+	 * @param pool worker pool for candidate evaluation, null for sequential sweep
+	 * @return this
+	 */
+	public ChipOptions searchPool(ExecutorService pool) {
+		searchPool = pool;
+		return this;
+	}
+
+	/**
+	 * Start the readin sweep from the setting that worked for earlier images of
+	 * the same acquisition profile and search outward from there
+	 * 
+	 * @param store profile store shared by all chips, null for the default
+	 *              sweep; owned by the caller, who closes it to save the
+	 *              successes recorded since its last save
+	 * @return this
+	 */
+	public ChipOptions profiles(ProfileStore store) {
+		profiles = store;
+		return this;
+	}
+
+	/**
+	 * Search chip on a downscaled image and only refine its corners at full
+	 * resolution before the perspective transform
+	 * 
+	 * @param edge length of the longer edge of the downscaled image, 0 to search
+	 *             at full resolution
+	 * @return this
+	 */
+	public ChipOptions pyramid(int edge) {
+		pyramidEdge = edge;
+		return this;
+	}
+
+	/**
+	 * Sample only the regions of the transformed chip later stages read,
+	 * through perspective maps reused while the corners stay put, instead of
+	 * warping the whole chip. The sampler may be shared by all chips.
+	 * 
+	 * @param sampler sampler for the chip layout, null for the full warp
+	 * @return this
+	 */
+	public ChipOptions sampler(RoiSampler sampler) {
+		this.sampler = sampler;
+		return this;
+	}
+
+	/**
+	 * Time every stage and count search effort of each chip, see Chip.metrics
+	 * for the per image record
+	 * 
+	 * @param registry aggregate shared by all chips, null to disable
+	 * @return this
+	 */
+	public ChipOptions metrics(MetricsRegistry registry) {
+		metrics = registry;
+		return this;
+	}
+
+	/**
+	 * Write intermediate images such as the remediation mask to disk
+	 * 
+	 * @param sink asynchronous image writer, null for no debug output
+	 * @return this
+	 */
+	public ChipOptions debug(DebugSink sink) {
+		debug = sink;
+		return this;
+	}
+}
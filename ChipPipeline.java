@@ -0,0 +1,173 @@
+package image_procs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import image_procs.ChipMetrics.Stage;
+
+/**
+ * Lazy alternative to the Chip constructors, which run every stage. Only the
+ * stages the requested outputs depend on are run, and each stage runs at most
+ * once per image:
+ *
+ * CORNERS, RESTR - readin (locate, refine, transform)
+ * REMEDIATED - readin, remediate
+ * BLOCK_VALUES, MAJOR_PEAKS, BLOCKS - readin, blockize without normalisation
+ * NORM_BLOCKS - readin, blockize
+ * ASSEM - readin, blockize without normalisation, assemble
+ */
+public class ChipPipeline {
+
+	public enum Output {
+		CORNERS, RESTR, REMEDIATED, BLOCKS, BLOCK_VALUES, MAJOR_PEAKS, NORM_BLOCKS, ASSEM
+	}
+
+	// given
+	protected Chip chip; // chip the stages are run on, fields are filled in as outputs are requested
+
+	// derived
+	protected EnumSet<Output> done; // outputs already computed
+	protected boolean located; // whether readin found the chip
+	protected boolean released; // whether the images have been freed
+
+	/**
+	 * @param filename filename of the image, read when the first output is
+	 *                 requested
+	 * @param layout   compiled design of the real chip
+	 * @param options  optional analysis modes
+	 */
+	public ChipPipeline(String filename, ChipLayout layout, ChipOptions options) {
+		chip = new Chip(layout, options);
+		chip.filename = filename;
+		done = EnumSet.noneOf(Output.class);
+	}
+
+	/**
+	 * @param orig    BGR image of the chip, owned and released by the pipeline
+	 * @param layout  compiled design of the real chip
+	 * @param options optional analysis modes
+	 */
+	public ChipPipeline(Mat orig, ChipLayout layout, ChipOptions options) {
+		this((String) null, layout, options);
+		chip.orig = MatScope.own(orig, "Chip");
+	}
+
+	/**
+	 * Run the stages given outputs depend on that have not run yet. Once the
+	 * chip cannot be located, the pipeline holds no images any more.
+	 *
+	 * @param outputs outputs to be made available on the chip
+	 * @return chip with the requested fields filled in
+	 * @throws IOException
+	 */
+	public Chip compute(Output... outputs) throws IOException {
+		EnumSet<Output> todo = EnumSet.noneOf(Output.class);
+		for (Output o : outputs)
+			if (!done.contains(o))
+				todo.add(o);
+		if (todo.isEmpty())
+			return chip;
+		if (released)
+			throw new IllegalStateException("Pipeline of " + chip.filename + " has been released");
+
+		ChipMetrics prev = chip.metrics.attach();
+		long t0 = chip.metrics.start();
+		try {
+			if (!located) {
+				try {
+					chip.localise();
+				} catch (IOException | RuntimeException e) {
+					release();
+					throw e;
+				}
+				located = true;
+				done.add(Output.CORNERS);
+				done.add(Output.RESTR);
+			}
+			if (todo.contains(Output.REMEDIATED) && !done.contains(Output.REMEDIATED)) {
+				chip.remediate();
+				done.add(Output.REMEDIATED);
+			}
+			boolean norm = todo.contains(Output.NORM_BLOCKS);
+			if (norm || !done.contains(Output.BLOCKS) && (todo.contains(Output.BLOCKS)
+					|| todo.contains(Output.BLOCK_VALUES) || todo.contains(Output.MAJOR_PEAKS)
+					|| todo.contains(Output.ASSEM))) {
+				chip.blockize(norm);
+				done.addAll(EnumSet.of(Output.BLOCKS, Output.BLOCK_VALUES, Output.MAJOR_PEAKS));
+				if (norm)
+					done.add(Output.NORM_BLOCKS);
+			}
+			if (todo.contains(Output.ASSEM)) {
+				chip.assemble();
+				done.add(Output.ASSEM);
+			}
+			return chip;
+		} finally {
+			chip.metrics.stop(Stage.TOTAL, t0);
+			ChipMetrics.detach(prev);
+		}
+	}
+
+	/**
+	 * @return corners of major chip portion in clockwise order
+	 * @throws IOException
+	 */
+	public Point[] mjCorners() throws IOException {
+		return compute(Output.CORNERS).mjCorners.toArray();
+	}
+
+	/**
+	 * @return corners of minor chip portion
+	 * @throws IOException
+	 */
+	public Point[] mrCorners() throws IOException {
+		return compute(Output.CORNERS).mrCorners.toArray();
+	}
+
+	/**
+	 * @return representative RGB value for each block
+	 * @throws IOException
+	 */
+	public int[][] blockValue() throws IOException {
+		return compute(Output.BLOCK_VALUES).blockValue;
+	}
+
+	/**
+	 * @return major peak intensity of each block channel
+	 * @throws IOException
+	 */
+	public int[][] majorPeaks() throws IOException {
+		return compute(Output.MAJOR_PEAKS).majorPeaks;
+	}
+
+	/**
+	 * Report the metrics record of the image and free native memory of all
+	 * images, the pipeline is unusable afterwards
+	 */
+	public void release() {
+		if (released)
+			return;
+		released = true;
+		chip.metrics.finish(chip.filename, located);
+		chip.release();
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		ChipLayout layout = ChipLayout.DEFAULT;
+		String nm = args.length > 0 ? args[0] : SyntheticChip.sample(layout.size());
+
+		ChipPipeline cp = new ChipPipeline(nm, layout, new ChipOptions());
+		long start = System.nanoTime();
+		Point[] mj = cp.mjCorners(); // stops after localisation
+		long mid = System.nanoTime();
+		int[][] bv = cp.blockValue(); // blocks without normalisation, assem or remediation
+		long end = System.nanoTime();
+		System.out.printf("corners %s in %d ms, %d block values in %d ms more%n", Arrays.toString(mj),
+				(mid - start) / 1000000, bv.length, (end - mid) / 1000000);
+		cp.release();
+	}
+}
@@ -0,0 +1,142 @@
+package image_procs;
+
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+public class ChipResult {
+
+	// given
+	protected final String filename; // analysed image, null for frames
+	protected final boolean located; // whether chip was analysed successfully
+	protected final String error; // reason of failure, null on success
+
+	// derived, empty unless located
+	protected final float[] mjCorners; // x0, y0, x1, y1 ... corners of major chip portion
+	protected final float[] mrCorners; // ... minor chip portion
+	protected final int boost, threshold; // sweep setting chip was located with
+	protected final int reduction; // factor the image was decoded at, corners are in its reduced coordinates
+	protected final int[][] blockValue; // representative (minor peak) BGR value for each block
+	protected final int[][] majorPeaks; // major peak intensity of each block channel
+	protected final long nanos; // time spent analysing the image
+	protected final long[] stageNanos; // time per ChipMetrics.Stage, empty if metrics were disabled
+
+	protected ChipResult(String filename, boolean located, String error, float[] mjCorners, float[] mrCorners,
+			int boost, int threshold, int reduction, int[][] blockValue, int[][] majorPeaks, long nanos,
+			long[] stageNanos) {
+		this.filename = filename;
+		this.located = located;
+		this.error = error;
+		this.mjCorners = mjCorners;
+		this.mrCorners = mrCorners;
+		this.boost = boost;
+		this.threshold = threshold;
+		this.reduction = reduction;
+		this.blockValue = blockValue;
+		this.majorPeaks = majorPeaks;
+		this.nanos = nanos;
+		this.stageNanos = stageNanos;
+	}
+
+	/**
+	 * @param chip  analysed chip
+	 * @param nanos time spent on the chip
+	 * @return result of a successful analysis
+	 */
+	public static ChipResult of(Chip chip, long nanos) {
+		return new ChipResult(chip.filename, true, null, flatten(chip.mjCorners), flatten(chip.mrCorners),
+				chip.boost, chip.threshold, chip.options.reduction, chip.blockValue, chip.majorPeaks, nanos,
+				stages(chip.metrics));
+	}
+
+	/**
+	 * @param filename image that could not be analysed
+	 * @param e        reason of failure
+	 * @param nanos    time spent on the image
+	 * @return result of a failed analysis
+	 */
+	public static ChipResult failed(String filename, Exception e, long nanos) {
+		String msg = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+		return new ChipResult(filename, false, msg, new float[0], new float[0], 0, 0, 1, new int[0][],
+				new int[0][], nanos, new long[0]);
+	}
+
+	private static long[] stages(ChipMetrics m) {
+		if (!m.enabled())
+			return new long[0];
+		long[] res = new long[ChipMetrics.Stage.values().length];
+		for (ChipMetrics.Stage s : ChipMetrics.Stage.values())
+			res[s.ordinal()] = m.nanos(s);
+		return res;
+	}
+
+	private static float[] flatten(MatOfPoint2f corners) {
+		Point[] pts = corners.toArray();
+		float[] res = new float[pts.length * 2];
+		for (int i = 0; i < pts.length; i++) {
+			res[2 * i] = (float) pts[i].x;
+			res[2 * i + 1] = (float) pts[i].y;
+		}
+		return res;
+	}
+
+	/**
+	 * @param corners x0, y0, x1, y1 ... as flattened by a result
+	 * @return corners as points
+	 */
+	public static Point[] points(float[] corners) {
+		Point[] res = new Point[corners.length / 2];
+		for (int i = 0; i < res.length; i++)
+			res[i] = new Point(corners[2 * i], corners[2 * i + 1]);
+		return res;
+	}
+
+	private static void array(StringBuilder sb, float[] a) {
+		sb.append('[');
+		for (int i = 0; i < a.length; i++)
+			sb.append(i == 0 ? "" : ",").append(a[i]);
+		sb.append(']');
+	}
+
+	private static void array(StringBuilder sb, int[][] a) {
+		sb.append('[');
+		for (int i = 0; i < a.length; i++) {
+			sb.append(i == 0 ? "[" : ",[");
+			for (int j = 0; j < a[i].length; j++)
+				sb.append(j == 0 ? "" : ",").append(a[i][j]);
+			sb.append(']');
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * @return result as a single line of JSON
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{\"file\":");
+		sb.append(filename == null ? "null" : MetricsRegistry.quote(filename));
+		sb.append(",\"located\":").append(located);
+		if (!located)
+			return sb.append(",\"error\":").append(MetricsRegistry.quote(error)).append(",\"ms\":")
+					.append(nanos / 1000000).append('}').toString();
+		sb.append(",\"mj\":");
+		array(sb, mjCorners);
+		sb.append(",\"mr\":");
+		array(sb, mrCorners);
+		sb.append(",\"boost\":").append(boost).append(",\"threshold\":").append(threshold);
+		sb.append(",\"reduction\":").append(reduction);
+		sb.append(",\"blockValue\":");
+		array(sb, blockValue);
+		sb.append(",\"majorPeaks\":");
+		array(sb, majorPeaks);
+		sb.append(",\"ms\":").append(nanos / 1000000);
+		if (stageNanos.length > 0) {
+			sb.append(",\"stages_ms\":{");
+			for (ChipMetrics.Stage s : ChipMetrics.Stage.values())
+				if (s.ordinal() < stageNanos.length) // results written before later stages were added
+					sb.append(s.ordinal() == 0 ? "\"" : ",\"").append(s.label()).append("\":")
+							.append(String.format("%.3f", stageNanos[s.ordinal()] / 1e6));
+			sb.append('}');
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,279 @@
+package image_procs;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+import image_procs.ChipPipeline.Output;
+
+/**
+ * Continuous analysis of the frames of a fixed camera. The chip is localised
+ * from scratch on the first frame and whenever tracking is lost; on every
+ * other frame its corners are tracked from the previous frame by optical
+ * flow, and the frame is only transformed and cut into blocks. Neither path
+ * remediates: block values are derived from the transformed chip, as
+ * ChipPipeline derives them.
+ */
+public class ChipStream implements AutoCloseable {
+
+	private static final double MAX_AREA_CHANGE = .1; // relative change of chip area between frames before tracking is lost
+
+	// given
+	protected ChipLayout layout; // compiled chip design
+	protected ChipOptions options; // analysis modes used when localising from scratch
+	protected Consumer<Frame> sink; // receives the result of every analysed frame
+
+	// derived
+	protected Mat prevGray; // gray scale image of the previous frame
+	protected Point[] mj, mr; // corners tracked into the previous frame, null if tracking is lost
+	protected BlockingQueue<Mat> queue; // frames waiting for the worker, oldest dropped when full
+	protected Thread worker; // analyses queued frames
+	protected AtomicLong frames, localised, dropped, failed; // counters, dropped is updated by the camera thread
+
+	/**
+	 * Result of analysing one frame
+	 */
+	public static class Frame {
+		protected final long index; // position of the frame in the stream
+		protected final boolean localised; // whether full localisation was run on this frame
+		protected final Point[] mjCorners, mrCorners; // corners in frame coordinates
+		protected final int[][] blockValue; // representative RGB value for each block
+		protected final String error; // reason the frame failed, null otherwise
+
+		protected Frame(long index, boolean localised, Point[] mjCorners, Point[] mrCorners, int[][] blockValue,
+				String error) {
+			this.index = index;
+			this.localised = localised;
+			this.mjCorners = mjCorners;
+			this.mrCorners = mrCorners;
+			this.blockValue = blockValue;
+			this.error = error;
+		}
+
+		/**
+		 * @param index position of the frame in the stream
+		 * @param e     reason of failure
+		 * @return result of a frame that failed with anything but a lost chip
+		 */
+		protected static Frame failed(long index, Exception e) {
+			String msg = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+			return new Frame(index, false, new Point[0], new Point[0], new int[0][], msg);
+		}
+
+		public boolean failed() {
+			return error != null;
+		}
+	}
+
+	public ChipStream(ChipLayout layout, ChipOptions options, Consumer<Frame> sink) {
+		this.layout = layout;
+		this.options = options;
+		this.sink = sink;
+		queue = new ArrayBlockingQueue<Mat>(2);
+		frames = new AtomicLong();
+		localised = new AtomicLong();
+		dropped = new AtomicLong();
+		failed = new AtomicLong();
+	}
+
+	/**
+	 * Analyse one frame synchronously - update prevGray, mj, mr
+	 *
+	 * @param frame BGR frame, owned and released by the stream
+	 * @return result of the frame, null if the chip could not be found
+	 * @throws IOException
+	 */
+	public Frame process(Mat frame) throws IOException {
+		long index = frames.getAndIncrement();
+		Mat gray = MatScope.own(new Mat(), "ChipStream");
+		Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+		Chip chip = null;
+		ChipPipeline cp = null;
+		boolean full = false;
+		try {
+			if (track(gray))
+				chip = follow(frame, gray);
+			if (chip == null) { // first frame or tracking lost
+				full = true;
+				localised.incrementAndGet();
+				cp = new ChipPipeline(frame, layout, options);
+				chip = cp.compute(Output.CORNERS, Output.BLOCK_VALUES);
+				mj = chip.mjCorners.toArray();
+				mr = chip.mrCorners.toArray();
+			}
+			Frame res = new Frame(index, full, mj, mr, chip.blockValue, null);
+			if (chip.gray == gray) // gray is kept for tracking into the next frame
+				chip.gray = null;
+			if (cp != null)
+				cp.release(); // releases frame as well
+			else
+				chip.release();
+			return res;
+		} catch (IllegalArgumentException e) { // chip not found, try from scratch on the next frame
+			failed.incrementAndGet();
+			mj = mr = null;
+			return null;
+		} finally {
+			MatScope.release(prevGray);
+			prevGray = gray;
+		}
+	}
+
+	/**
+	 * Track corners of the previous frame into gray with pyramidal optical flow -
+	 * update mj, mr
+	 *
+	 * @param gray gray scale image of the current frame
+	 * @return whether all corners were tracked and the chip kept its shape
+	 */
+	private boolean track(Mat gray) {
+		if (prevGray == null || mj == null)
+			return false;
+		Point[] prev = new Point[mj.length + mr.length];
+		System.arraycopy(mj, 0, prev, 0, mj.length);
+		System.arraycopy(mr, 0, prev, mj.length, mr.length);
+		try (MatScope ms = new MatScope("ChipStream")) {
+			MatOfPoint2f from = ms.add(new MatOfPoint2f(prev)), to = ms.add(new MatOfPoint2f());
+			MatOfByte status = ms.add(new MatOfByte());
+			MatOfFloat err = ms.add(new MatOfFloat());
+			Video.calcOpticalFlowPyrLK(prevGray, gray, from, to, status, err, new Size(21, 21), 3);
+			for (byte st : status.toArray())
+				if (st == 0)
+					return false;
+			Point[] next = to.toArray();
+			Point[] nmj = new Point[mj.length], nmr = new Point[mr.length];
+			System.arraycopy(next, 0, nmj, 0, mj.length);
+			System.arraycopy(next, mj.length, nmr, 0, mr.length);
+			double before = area(mj), after = area(nmj);
+			if (before <= 0 || Math.abs(after - before) / before > MAX_AREA_CHANGE)
+				return false;
+			mj = nmj;
+			mr = nmr;
+			return true;
+		}
+	}
+
+	/**
+	 * Transform frame with the tracked corners and derive its block values,
+	 * skipping readin
+	 *
+	 * @param frame BGR frame
+	 * @param gray  gray scale image of frame
+	 * @return analysed chip, null if the tracked corners cannot be transformed
+	 * @throws IOException
+	 */
+	private Chip follow(Mat frame, Mat gray) throws IOException {
+		Chip chip = new Chip(layout, options);
+		chip.orig = MatScope.own(frame, "Chip");
+		chip.gray = gray;
+		chip.mjCorners = MatScope.own(new MatOfPoint2f(mj), "Chip");
+		chip.mrCorners = MatScope.own(new MatOfPoint2f(mr), "Chip");
+		try {
+			chip.chipTransform();
+		} catch (Exception e) { // same policy as readin - corners that cannot be transformed are rejected
+			chip.gray = null;
+			chip.orig = null;
+			chip.release();
+			return null;
+		}
+		try {
+			chip.blockize(false);
+		} catch (IOException | RuntimeException e) {
+			chip.gray = null; // still owned by process
+			chip.release();
+			throw e;
+		}
+		return chip;
+	}
+
+	/**
+	 * @param quad polygon corners in order
+	 * @return area of the polygon (shoelace formula)
+	 */
+	private static double area(Point[] quad) {
+		double res = 0;
+		for (int i = 0; i < quad.length; i++) {
+			Point a = quad[i], b = quad[(i + 1) % quad.length];
+			res += a.x * b.y - b.x * a.y;
+		}
+		return Math.abs(res) / 2;
+	}
+
+	/**
+	 * Start analysing offered frames on a background thread, results are
+	 * published to sink as they are produced. A frame failing with anything
+	 * but a lost chip is counted as failed and published with its error,
+	 * tracking restarts from scratch and the worker carries on with the next
+	 * frame.
+	 */
+	public synchronized void start() {
+		if (worker != null)
+			return;
+		worker = new Thread(() -> {
+			try {
+				while (true) {
+					Mat frame = queue.take();
+					long index = frames.get(); // process numbers it the same, frames are only processed here
+					Frame res;
+					try {
+						res = process(frame);
+					} catch (IOException | RuntimeException e) { // e.g. fewer contours than corners
+						failed.incrementAndGet();
+						mj = mr = null;
+						MatScope.release(frame);
+						res = Frame.failed(index, e);
+					}
+					if (res != null)
+						sink.accept(res);
+				}
+			} catch (InterruptedException e) { // stream closed
+			}
+		}, "ChipStream");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Queue frame for the background worker without blocking the camera. If
+	 * the worker lags behind, the oldest waiting frame is dropped so results
+	 * keep up with camera rate.
+	 *
+	 * @param frame BGR frame, owned and released by the stream
+	 */
+	public void offer(Mat frame) {
+		while (!queue.offer(frame)) {
+			Mat old = queue.poll();
+			if (old != null) {
+				MatScope.release(old);
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (worker != null) {
+			worker.interrupt();
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			worker = null;
+		}
+		for (Mat m : queue)
+			MatScope.release(m);
+		queue.clear();
+		MatScope.release(prevGray);
+		prevGray = null;
+	}
+}
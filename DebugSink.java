@@ -0,0 +1,91 @@
+package image_procs;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+public class DebugSink implements AutoCloseable {
+
+	private static class Job {
+		final File file;
+		final Mat img;
+
+		Job(File file, Mat img) {
+			this.file = file;
+			this.img = img;
+		}
+	}
+
+	// given
+	protected File dir; // directory debug images are written to
+
+	// derived
+	protected BlockingQueue<Job> queue; // images waiting to be written
+	protected Thread writer; // writes queued images
+	protected AtomicLong written, dropped; // counters, dropped is updated by every analysing thread
+	protected AtomicLong frames; // sequence number of the next unnamed image
+
+	public DebugSink(File dir, int capacity) {
+		this.dir = dir;
+		dir.mkdirs();
+		queue = new ArrayBlockingQueue<Job>(capacity);
+		written = new AtomicLong();
+		dropped = new AtomicLong();
+		frames = new AtomicLong();
+		writer = new Thread(() -> {
+			try {
+				while (true) {
+					Job job = queue.take();
+					if (job.img == null) // end marker
+						return;
+					Imgcodecs.imwrite(job.file.getPath(), job.img);
+					MatScope.release(job.img);
+					written.incrementAndGet();
+				}
+			} catch (InterruptedException e) { // closed
+			}
+		}, "DebugSink");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public DebugSink(File dir) {
+		this(dir, 64);
+	}
+
+	/**
+	 * Queue a copy of img to be written as dir/name_tag.png, or
+	 * dir/frame_N_tag.png with a sequence number N for unnamed images. Never
+	 * blocks the analysis, images are dropped while the writer lags behind.
+	 *
+	 * @param name image the debug output belongs to, e.g. its filename, null
+	 *             for a video frame
+	 * @param tag  stage that produced img
+	 * @param img  image to be written, copied so the caller may release it
+	 */
+	public void write(String name, String tag, Mat img) {
+		String base = name == null ? "frame_" + frames.getAndIncrement() : new File(name).getName().replaceFirst("\\.[^.]*$", "");
+		Job job = new Job(new File(dir, base + "_" + tag + ".png"), MatScope.own(img.clone(), "DebugSink"));
+		if (!queue.offer(job)) {
+			MatScope.release(job.img);
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Write images still queued and stop the writer
+	 */
+	@Override
+	public void close() {
+		try {
+			queue.put(new Job(null, null));
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			writer.interrupt();
+		}
+	}
+}
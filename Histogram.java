@@ -4,9 +4,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
 
 public class Histogram {
 
@@ -15,31 +13,30 @@ public class Histogram {
 	protected int dist;
 
 	// derived
-	protected int[] hist, curChannel;
+	protected int[] hist;
 	protected int majorPeakInten; // intensity value attaining the major peak
 	protected int minorPeakInten; // minor peak
 	protected List<Integer> mrPeaks; // candidate minor peaks
 
 	public Histogram(Mat img, int dist) {
+		this(new HistogramEngine().bin(img)[0], dist);
 		imgChl = img;
-		this.dist = dist;
+	}
 
-		MatToIntArray(); // update curChannel
-		hist = new int[256];
-		for (int val : curChannel)
-			hist[val]++;
+	/**
+	 * Histogram over counts binned elsewhere, e.g. by HistogramEngine
+	 * 
+	 * @param hist 256 bins of a channel, used in place
+	 * @param dist coverage range of histogram peak
+	 */
+	public Histogram(int[] hist, int dist) {
+		this.hist = hist;
+		this.dist = dist;
 		hist[0] = 0;
 		hist[255] = 0;
 		peak();
 	}
 
-	public void MatToIntArray() {
-		curChannel = new int[(int) (imgChl.total() * imgChl.channels())];
-		MatOfInt moi = new MatOfInt(CvType.CV_32S);
-		imgChl.convertTo(moi, CvType.CV_32S);
-		moi.get(0, 0, curChannel);
-	}
-
 	/**
 	 * Recursively squeeze to disclose a set of candidate minor peaks
 	 * 
@@ -99,8 +96,8 @@ public class Histogram {
 
 	public static void main(String[] args) throws IOException {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
-		String nm = "D:/Software/Python37/wd/2018-19FYP/chip_v2/Benchmarking/20190305/version2/1-orig/light3/t1l3_20190305_18_lighttray_900lux_1min_TET0.5.jpg";
 		int[] size = { 7, 6, 20, 27, 40, 30, 35, 30, 15, 420 };
+		String nm = args.length > 0 ? args[0] : SyntheticChip.sample(size);
 		Chip chip = new Chip(nm, size);
 
 		Mat b5 = chip.blocks[5], b5r = new Mat();
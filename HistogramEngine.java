@@ -0,0 +1,79 @@
+package image_procs;
+
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class HistogramEngine {
+
+	// derived
+	protected byte[] pixels; // pixel buffer, grown on demand and reused
+	protected int[][] counts; // per channel histograms, reused
+	protected int channels; // number of channels binned by the last call
+
+	public HistogramEngine() {
+		pixels = new byte[0];
+		counts = new int[0][];
+	}
+
+	/**
+	 * Bin all channels of an 8-bit image in one interleaved pass over its pixel
+	 * data. Returned arrays are reused by the next call.
+	 * 
+	 * @param img 8-bit image of any number of channels, may be a submat
+	 * @return histogram of each channel, 256 bins each
+	 */
+	public int[][] bin(Mat img) {
+		if (img.depth() != CvType.CV_8U)
+			throw new IllegalArgumentException("Histogram expects 8-bit image, got type " + img.type());
+		channels = img.channels();
+		int n = (int) img.total() * channels;
+		if (pixels.length < n)
+			pixels = new byte[n];
+		if (counts.length < channels) {
+			counts = new int[channels][];
+			for (int c = 0; c < channels; c++)
+				counts[c] = new int[256];
+		}
+		for (int c = 0; c < channels; c++)
+			Arrays.fill(counts[c], 0);
+		if (n == 0)
+			return counts;
+		img.get(0, 0, pixels); // copies row by row for submats
+
+		byte[] p = pixels;
+		if (channels == 3) {
+			int[] h0 = counts[0], h1 = counts[1], h2 = counts[2];
+			for (int i = 0; i < n; i += 3) {
+				h0[p[i] & 0xff]++;
+				h1[p[i + 1] & 0xff]++;
+				h2[p[i + 2] & 0xff]++;
+			}
+		} else if (channels == 1) {
+			int[] h0 = counts[0];
+			for (int i = 0; i < n; i++)
+				h0[p[i] & 0xff]++;
+		} else {
+			for (int i = 0; i < n; i++)
+				counts[i % channels][p[i] & 0xff]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Histogram and peaks of every channel of img, identical to a Histogram of
+	 * each channel split from img. The histograms are backed by the buffers of
+	 * this engine and stay valid until its next call.
+	 * 
+	 * @param img  8-bit image
+	 * @param dist coverage range of histogram peak
+	 * @return one histogram per channel
+	 */
+	public Histogram[] histograms(Mat img, int dist) {
+		bin(img);
+		Histogram[] res = new Histogram[channels];
+		for (int c = 0; c < channels; c++)
+			res[c] = new Histogram(counts[c], dist);
+		return res;
+	}
+}
@@ -5,29 +5,27 @@ import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
 import net.coobird.thumbnailator.Thumbnails;
 
 public class ImageKit {
 
+	// histogram buffers, reused by all blocks analysed on a thread
+	private static final ThreadLocal<HistogramEngine> ENGINE = ThreadLocal.withInitial(HistogramEngine::new);
+
 	// given
 	protected Mat img;
 	protected double fold; // image display fold
 	protected int peakRange; // coverage range of histogram peak (suggested 7)
 
 	// derived
-	protected List<Mat> bgr; // R/G/B channel of img
 	protected Mat norm; // normalised img
-	protected Histogram[] hists; // R/G/B channel histogram for img
+	protected Histogram[] hists; // R/G/B channel histogram for img, own copy of the engine's bins
 	protected int[] repreValue; // representative RGB value for img
 
 	public ImageKit(Mat img, double fold) {
@@ -36,14 +34,24 @@ public class ImageKit {
 	}
 
 	public ImageKit(Mat img, double fold, int peakRange) {
+		this(img, fold, peakRange, true);
+	}
+
+	/**
+	 * @param img       BGR image to be analysed
+	 * @param fold      image display fold
+	 * @param peakRange coverage range of histogram peak
+	 * @param normalise whether to derive norm, histograms and repreValue are
+	 *                  always derived
+	 */
+	public ImageKit(Mat img, double fold, int peakRange, boolean normalise) {
 		this.img = img;
 		this.fold = fold;
 		this.peakRange = peakRange;
 
-		bgr = new ArrayList<>();
-		hists = new Histogram[3];
-		Core.split(img, bgr);
 		hist();
+		if (!normalise)
+			return;
 		normalization();
 	}
 
@@ -92,36 +100,32 @@ public class ImageKit {
 
 	// Histogram
 	public void hist() {
-		for (int i = 0; i < 2; i++) {
-			hists[i] = new Histogram(bgr.get(i), peakRange);
+		hists = ENGINE.get().histograms(img, peakRange); // all channels in one pass over img
+		for (Histogram h : hists) // the engine reuses its bins for the next block on this thread
+			h.hist = h.hist.clone();
+		repreValue = new int[3];
+		for (int i = 0; i < 3; i++)
 			repreValue[i] = hists[i].minorPeakInten;
-		}
 	}
 
 	// Normalisation - histogram based
 	public void normalization() {
 		int h = (int) img.size().height, w = (int) img.size().width;
-		norm = new Mat(h, w, CvType.CV_8UC3, new Scalar(0, 0, 0));
-		for (int i = 0; i < 3; i++) {
-			Mat nChl = new Mat(), mask = new Mat();
-			// shift current channel
-			int shift = hists[i].majorPeakInten - 200;
-			Mat smask = new Mat(h, w, CvType.CV_8UC1, new Scalar(shift));
-
-			// do not shift 0-valued pixels
-			Imgproc.threshold(bgr.get(i), mask, 0, 1, 0); // pixels originally > 0 are converted to 1
-			Core.multiply(mask, smask, mask); // pixels originally > 0 assigned with shift
-
-			// add
-			Core.add(mask, bgr.get(i), nChl);
-			Core.insertChannel(nChl, norm, i);
-		}
+		// shift each channel, clamped like the 8-bit shift mask it used to be built from
+		int[] shift = new int[3];
+		for (int i = 0; i < 3; i++)
+			shift[i] = Math.max(0, Math.min(255, hists[i].majorPeakInten - 200));
+		// do not shift 0-valued pixels, all channels in one pass
+		byte[] px = PixelKernels.pixels(img);
+		PixelKernels.shiftNonZero(px, 3, shift);
+		norm = new Mat(h, w, CvType.CV_8UC3);
+		norm.put(0, 0, px);
 	}
 
 	public static void main(String[] args) throws IOException {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
-		String nm = "D:/Software/Python37/wd/2018-19FYP/chip_v2/Benchmarking/20190305/version2/1-orig/light3/t1l3_20190305_18_lighttray_900lux_1min_TET0.5.jpg";
 		int[] size = { 7, 6, 20, 27, 40, 30, 35, 30, 15, 420 };
+		String nm = args.length > 0 ? args[0] : SyntheticChip.sample(size);
 		Chip chip = new Chip(nm, size);
 		Mat b5 = chip.blocks[5];
 		ImageKit ik = new ImageKit(b5, 1, 7);
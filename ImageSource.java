@@ -0,0 +1,296 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Image ingestion - decodes from memory-mapped files and in-memory buffers,
+ * optionally at a reduced resolution, and prefetches the next images of a
+ * batch on a background thread.
+ *
+ * Reduced decode lets the JPEG decoder skip most of the inverse DCT, which
+ * dominates decode time for large photos. The chip is transformed to a fixed
+ * size, so a reduction keeping the inner chip edge well above that size loses
+ * nothing measurable; corners are then in coordinates of the reduced image.
+ */
+public class ImageSource {
+
+	/**
+	 * @param reduction factor the image is reduced by while decoding, 1, 2, 4 or 8
+	 * @return imread/imdecode flags decoding a BGR image at that reduction
+	 */
+	public static int flags(int reduction) {
+		switch (reduction) {
+		case 1:
+			return Imgcodecs.IMREAD_COLOR;
+		case 2:
+			return Imgcodecs.IMREAD_REDUCED_COLOR_2;
+		case 4:
+			return Imgcodecs.IMREAD_REDUCED_COLOR_4;
+		case 8:
+			return Imgcodecs.IMREAD_REDUCED_COLOR_8;
+		default:
+			throw new IllegalArgumentException("Reduction must be 1, 2, 4 or 8, got " + reduction);
+		}
+	}
+
+	/**
+	 * Decode an image file through a memory mapping, so the encoded bytes are
+	 * read from the page cache without a copy to the Java heap
+	 *
+	 * @param file      encoded image
+	 * @param reduction factor the image is reduced by while decoding
+	 * @return BGR image, owned by the caller
+	 * @throws IOException if the file cannot be read or decoded
+	 */
+	public static Mat read(Path file, int reduction) throws IOException {
+		return read(map(file), file.toString(), reduction);
+	}
+
+	/**
+	 * @param file encoded image
+	 * @return read-only mapping of the whole file
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to decode");
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // stays valid after the channel closes
+		}
+	}
+
+	/**
+	 * @param data      encoded image
+	 * @param name      name of the image in the error message
+	 * @param reduction factor the image is reduced by while decoding
+	 * @return BGR image, owned by the caller
+	 * @throws IOException if data cannot be decoded
+	 */
+	public static Mat read(ByteBuffer data, String name, int reduction) throws IOException {
+		Mat res = decode(data, reduction);
+		if (res.empty()) {
+			MatScope.release(res);
+			throw new IOException("Cannot decode " + name);
+		}
+		return res;
+	}
+
+	/**
+	 * Decode an encoded image held in a buffer, e.g. received from a socket or
+	 * read from an archive. Direct buffers are decoded in place.
+	 *
+	 * @param data      encoded image between position and limit, position is
+	 *                  left unchanged
+	 * @param reduction factor the image is reduced by while decoding
+	 * @return BGR image, empty if data cannot be decoded, owned by the caller
+	 */
+	public static Mat decode(ByteBuffer data, int reduction) {
+		int flags = flags(reduction);
+		if (!data.isDirect()) {
+			byte[] b = new byte[data.remaining()];
+			data.duplicate().get(b);
+			return decode(b, reduction);
+		}
+		try (MatScope ms = new MatScope("ImageSource")) {
+			Mat encoded = ms.add(new Mat(1, data.remaining(), CvType.CV_8UC1, data.slice())); // wraps, no copy
+			return MatScope.own(Imgcodecs.imdecode(encoded, flags), "ImageSource");
+		} finally {
+			Reference.reachabilityFence(data); // the Mat only holds the address, a mapping must not be unmapped
+		}
+	}
+
+	/**
+	 * @param data      encoded image
+	 * @param reduction factor the image is reduced by while decoding
+	 * @return BGR image, empty if data cannot be decoded, owned by the caller
+	 */
+	public static Mat decode(byte[] data, int reduction) {
+		int flags = flags(reduction);
+		try (MatScope ms = new MatScope("ImageSource")) {
+			MatOfByte encoded = ms.add(new MatOfByte(data));
+			return MatScope.own(Imgcodecs.imdecode(encoded, flags), "ImageSource");
+		}
+	}
+
+	/**
+	 * A decoded image of a prefetched batch
+	 */
+	public static class Decoded {
+		protected final String filename; // image file
+		protected final Mat img; // BGR image, null if it could not be decoded; owned by the consumer
+		protected final IOException error; // why it could not be decoded, null otherwise
+		protected final long nanos; // time spent decoding it
+
+		protected Decoded(String filename, Mat img, IOException error, long nanos) {
+			this.filename = filename;
+			this.img = img;
+			this.error = error;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Decodes the images of a batch on a background thread, at most depth
+	 * images ahead of the consumer, so reading and decoding the next image
+	 * overlaps with analysing the current one.
+	 */
+	public static class Prefetcher implements Iterator<Decoded>, AutoCloseable {
+		private static final Decoded END = new Decoded(null, null, null, 0); // marks the end of the batch
+
+		// given
+		protected List<String> filenames; // images in consumption order
+		protected int reduction; // factor images are reduced by while decoding
+
+		// derived
+		protected BlockingQueue<Decoded> queue; // decoded images waiting for the consumer
+		protected Thread worker; // decodes images into queue
+		protected Decoded next; // image handed out by the next call of next(), null if not taken yet
+
+		public Prefetcher(List<String> filenames, int reduction, int depth) {
+			this.filenames = filenames;
+			this.reduction = reduction;
+			flags(reduction); // fail early on an unsupported reduction
+			queue = new ArrayBlockingQueue<Decoded>(depth);
+			worker = new Thread(this::decodeAll, "ImageSource");
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		/**
+		 * Decode every image into queue, a file failing in any way is handed
+		 * out as failed and END always follows, unless the consumer closed
+		 */
+		private void decodeAll() {
+			boolean closed = false;
+			try {
+				for (String nm : filenames) {
+					long t0 = System.nanoTime();
+					Decoded d;
+					try {
+						d = new Decoded(nm, read(Paths.get(nm), reduction), null, System.nanoTime() - t0);
+					} catch (IOException e) {
+						d = new Decoded(nm, null, e, System.nanoTime() - t0);
+					} catch (RuntimeException e) { // e.g. CvException on a corrupt file
+						d = new Decoded(nm, null, new IOException("Cannot decode " + nm, e), System.nanoTime() - t0);
+					}
+					try {
+						queue.put(d);
+					} catch (InterruptedException e) {
+						MatScope.release(d.img);
+						throw e;
+					}
+				}
+			} catch (InterruptedException e) { // closed by the consumer, which waits for this thread to end
+				closed = true;
+			} finally {
+				if (!closed) {
+					try {
+						queue.put(END); // also after an Error, so the consumer never waits forever
+					} catch (InterruptedException e) { // closed meanwhile
+					}
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				try {
+					next = queue.take(); // END is kept in next once reached
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for the next image", e);
+				}
+			}
+			return next != END;
+		}
+
+		@Override
+		public Decoded next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Decoded res = next;
+			next = null;
+			return res;
+		}
+
+		/**
+		 * Stop decoding and free the images not handed out yet
+		 */
+		@Override
+		public void close() {
+			worker.interrupt();
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (next != null)
+				MatScope.release(next.img);
+			next = null;
+			for (Decoded d : queue)
+				MatScope.release(d.img);
+			queue.clear();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length < 2) {
+			System.out.println("usage: ImageSource <reduction> <directory | image...>");
+			return;
+		}
+		int reduction = Integer.parseInt(args[0]);
+		List<String> nms = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			File f = new File(args[i]);
+			if (f.isDirectory())
+				nms.addAll(BatchAnalyzer.listImages(f));
+			else
+				nms.add(args[i]);
+		}
+
+		// analyse sequentially while the next images are decoded in the background
+		long start = System.nanoTime(), decode = 0;
+		int located = 0;
+		try (Prefetcher pf = new Prefetcher(nms, reduction, 2)) {
+			while (pf.hasNext()) {
+				Decoded d = pf.next();
+				decode += d.nanos;
+				if (d.img == null) {
+					System.out.println(d.filename + ": " + d.error.getMessage());
+					continue;
+				}
+				try {
+					Chip chip = new Chip(d.filename, d.img, ChipLayout.DEFAULT, new ChipOptions());
+					located++;
+					chip.release();
+				} catch (IllegalArgumentException e) {
+					System.out.println(d.filename + ": " + e.getMessage());
+				}
+			}
+		}
+		long total = System.nanoTime() - start;
+		System.out.printf("%d of %d images located in %.1f ms/image, decode %.1f ms/image in the background%n",
+				located, nms.size(), total / 1e6 / Math.max(1, nms.size()), decode / 1e6 / Math.max(1, nms.size()));
+	}
+}
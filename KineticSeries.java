@@ -0,0 +1,182 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * Kinetic analysis of snapshots of one chip taken at several incubation
+ * times, e.g. plate_900lux_1min.jpg, plate_900lux_3min.jpg. The chip does not
+ * move between snapshots, so it is only localised on the first one; later
+ * snapshots track its corners from the previous one (see ChipStream) and
+ * only transform and blockize, falling back to a full localisation if the
+ * corners were lost or the chip changed its shape. Block values are reported
+ * as deltas to the first located snapshot, one kinetic curve per spot.
+ */
+public class KineticSeries {
+
+	// incubation time encoded in filenames
+	private static final Pattern TIME = Pattern.compile("_(\\d+)min");
+
+	/**
+	 * Result of one snapshot of a series
+	 */
+	public static class Timepoint {
+		protected final String filename; // snapshot image
+		protected final int minutes; // incubation time
+		protected final boolean localised; // whether full localisation was run on this snapshot
+		protected final int[][] blockValue; // representative BGR value for each block, null if chip was not found
+		protected final int[][] delta; // blockValue minus that of the first located snapshot, null ...
+
+		protected Timepoint(String filename, int minutes, boolean localised, int[][] blockValue, int[][] delta) {
+			this.filename = filename;
+			this.minutes = minutes;
+			this.localised = localised;
+			this.blockValue = blockValue;
+			this.delta = delta;
+		}
+
+		public boolean located() {
+			return blockValue != null;
+		}
+	}
+
+	// given
+	protected ChipLayout layout; // compiled chip design
+	protected ChipOptions options; // analysis modes used when localising
+
+	public KineticSeries(ChipLayout layout, ChipOptions options) {
+		this.layout = layout;
+		this.options = options;
+	}
+
+	/**
+	 * @param filename snapshot filename
+	 * @return incubation time in minutes, -1 if filename carries none
+	 */
+	public static int minutes(String filename) {
+		Matcher m = TIME.matcher(new File(filename).getName().toLowerCase());
+		return m.find() ? Integer.parseInt(m.group(1)) : -1;
+	}
+
+	/**
+	 * @param filename snapshot filename
+	 * @return filename with the incubation time removed, shared by all
+	 *         snapshots of the chip
+	 */
+	public static String seriesOf(String filename) {
+		File f = new File(filename);
+		String nm = TIME.matcher(f.getName().toLowerCase()).replaceFirst("");
+		return f.getParent() == null ? nm : new File(f.getParent(), nm).getPath();
+	}
+
+	/**
+	 * @param filenames snapshots of any number of chips
+	 * @return series -> its snapshots by ascending incubation time, files
+	 *         without incubation time form a series of their own
+	 */
+	public static Map<String, List<String>> group(List<String> filenames) {
+		Map<String, List<String>> res = new TreeMap<String, List<String>>();
+		for (String fn : filenames)
+			res.computeIfAbsent(seriesOf(fn), k -> new ArrayList<String>()).add(fn);
+		for (List<String> snapshots : res.values())
+			snapshots.sort(Comparator.comparingInt(KineticSeries::minutes));
+		return res;
+	}
+
+	/**
+	 * Analyse the snapshots of one chip in order
+	 *
+	 * @param snapshots snapshot filenames by ascending incubation time
+	 * @return result of every snapshot, in the same order
+	 */
+	public List<Timepoint> analyse(List<String> snapshots) {
+		List<Timepoint> res = new ArrayList<Timepoint>();
+		int[][] base = null; // block values of the first located snapshot
+		try (ChipStream cs = new ChipStream(layout, options, null)) {
+			for (String fn : snapshots) {
+				ChipStream.Frame f = null;
+				try {
+					Mat img = ImageSource.read(Paths.get(fn), options.reduction);
+					f = cs.process(img); // owns img
+				} catch (IOException e) { // unreadable snapshot, the series continues without it
+				}
+				if (f == null) {
+					res.add(new Timepoint(fn, minutes(fn), false, null, null));
+					continue;
+				}
+				if (base == null)
+					base = f.blockValue;
+				int[][] delta = new int[base.length][3];
+				for (int id = 0; id < base.length; id++)
+					for (int ch = 0; ch < 3; ch++)
+						delta[id][ch] = f.blockValue[id][ch] - base[id][ch];
+				res.add(new Timepoint(fn, minutes(fn), f.localised, f.blockValue, delta));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Write the kinetic curves of a series as CSV rows, one per snapshot and
+	 * spot: series,minutes,localised,spot,row,col,b,g,r,db,dg,dr. Snapshots the
+	 * chip was not found on have no rows.
+	 *
+	 * @param out    destination
+	 * @param series name of the series
+	 * @param points result of analyse
+	 */
+	public void write(PrintWriter out, String series, List<Timepoint> points) {
+		for (Timepoint tp : points) {
+			if (!tp.located())
+				continue;
+			for (int id = 0; id < tp.blockValue.length; id++) {
+				int[] v = tp.blockValue[id], d = tp.delta[id];
+				out.printf("%s,%d,%b,%d,%d,%d,%d,%d,%d,%d,%d,%d%n", series, tp.minutes, tp.localised, id,
+						id / layout.cols(), id % layout.cols(), v[0], v[1], v[2], d[0], d[1], d[2]);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length == 0) {
+			System.out.println("usage: KineticSeries <directory | image...>");
+			return;
+		}
+		List<String> nms = new ArrayList<String>();
+		for (String arg : args) {
+			File f = new File(arg);
+			if (f.isDirectory())
+				nms.addAll(BatchAnalyzer.listImages(f));
+			else
+				nms.add(arg);
+		}
+		KineticSeries ks = new KineticSeries(ChipLayout.DEFAULT, new ChipOptions().reduce(Integer.getInteger("chip.reduce", 1)));
+		PrintWriter out = new PrintWriter(System.out);
+		out.println("series,minutes,localised,spot,row,col,b,g,r,db,dg,dr");
+		for (Map.Entry<String, List<String>> e : group(nms).entrySet()) {
+			long t0 = System.nanoTime();
+			List<Timepoint> points = ks.analyse(e.getValue());
+			ks.write(out, new File(e.getKey()).getName(), points);
+			out.flush();
+			int located = 0, localised = 0;
+			for (Timepoint tp : points) {
+				located += tp.located() ? 1 : 0;
+				localised += tp.localised ? 1 : 0;
+			}
+			System.err.printf("%s: %d snapshots, %d located, %d localised, %.0f ms%n", e.getKey(), points.size(),
+					located, localised, (System.nanoTime() - t0) / 1e6);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package image_procs;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opencv.core.Mat;
+
+/**
+ * Scoped ownership of OpenCV Mats. Native memory of a Mat is otherwise only
+ * freed when the Java wrapper is finalised, which a small heap rarely triggers.
+ *
+ * Temporaries are added to a scope and released when the scope closes; results
+ * outliving the scope are kept, which hands them to their new owner. Every Mat
+ * passing through a scope stays registered until released, so live() and
+ * report() show the Mats still holding native memory. The registry only holds
+ * Mats weakly: a Mat its owner dropped without releasing is still reclaimed
+ * by finalisation, and leaves the registry once collected.
+ */
+public class MatScope implements AutoCloseable {
+
+	// registry of live Mats - native address -> owner, and the collected Mats still to be removed from it
+	private static final Map<Long, Owned> LIVE = new ConcurrentHashMap<Long, Owned>();
+	private static final ReferenceQueue<Mat> COLLECTED = new ReferenceQueue<Mat>();
+
+	private static class Owned extends WeakReference<Mat> {
+		final long address;
+		final String owner;
+
+		Owned(Mat mat, String owner) {
+			super(mat, COLLECTED);
+			this.address = mat.nativeObj;
+			this.owner = owner;
+		}
+	}
+
+	// given
+	protected String owner; // stage owning the scope, used in leak report
+
+	// derived
+	protected List<Mat> mats; // Mats released when scope closes
+
+	public MatScope(String owner) {
+		this.owner = owner;
+		mats = new ArrayList<Mat>();
+	}
+
+	/**
+	 * Add Mat to this scope, it is released when the scope closes
+	 *
+	 * @param m Mat to be tracked
+	 * @return m
+	 */
+	public <T extends Mat> T add(T m) {
+		own(m, owner);
+		mats.add(m);
+		return m;
+	}
+
+	/**
+	 * Add all Mats to this scope
+	 *
+	 * @param ms Mats to be tracked
+	 * @return ms
+	 */
+	public <T extends Mat> List<T> addAll(List<T> ms) {
+		for (T m : ms)
+			add(m);
+		return ms;
+	}
+
+	/**
+	 * Take Mat out of this scope so it survives close(), the caller becomes
+	 * responsible for releasing it
+	 *
+	 * @param m Mat previously added to this scope
+	 * @return m
+	 */
+	public <T extends Mat> T keep(T m) {
+		for (int i = mats.size() - 1; i >= 0; i--)
+			if (mats.get(i) == m)
+				mats.remove(i);
+		return m;
+	}
+
+	@Override
+	public void close() {
+		for (Mat m : mats)
+			release(m);
+		mats.clear();
+	}
+
+	/**
+	 * Register Mat owned outside any scope, e.g. a field of Chip
+	 *
+	 * @param m     Mat to be registered, ignored if null
+	 * @param owner owner shown in leak report
+	 * @return m
+	 */
+	public static <T extends Mat> T own(T m, String owner) {
+		purge();
+		if (m != null)
+			LIVE.put(m.nativeObj, new Owned(m, owner));
+		return m;
+	}
+
+	/**
+	 * Register all Mats as owned by given owner
+	 *
+	 * @param ms    Mats to be registered
+	 * @param owner owner shown in leak report
+	 * @return ms
+	 */
+	public static <T extends Mat> List<T> ownAll(List<T> ms, String owner) {
+		for (T m : ms)
+			own(m, owner);
+		return ms;
+	}
+
+	/**
+	 * Free native memory of given Mats, null entries are ignored
+	 *
+	 * @param ms Mats to be released
+	 */
+	public static void release(Mat... ms) {
+		for (Mat m : ms) {
+			if (m == null)
+				continue;
+			LIVE.remove(m.nativeObj);
+			ChipMetrics cur = ChipMetrics.current();
+			if (cur != null)
+				cur.count(ChipMetrics.Counter.RELEASED_BYTES, bytes(m));
+			m.release();
+		}
+	}
+
+	/**
+	 * @param ms Mats, null entries are ignored
+	 * @return native bytes the Mats own, a submat shares the memory of its
+	 *         parent and counts nothing
+	 */
+	public static long bytes(Mat... ms) {
+		long res = 0;
+		for (Mat m : ms)
+			if (m != null && !m.isSubmatrix())
+				res += m.total() * m.elemSize();
+		return res;
+	}
+
+	/**
+	 * Free native memory of all Mats in ms except the ones in keep
+	 *
+	 * @param ms   Mats to be released, may be null
+	 * @param keep Mats to be spared
+	 */
+	public static void releaseExcept(Collection<? extends Mat> ms, Mat... keep) {
+		if (ms == null)
+			return;
+		outer: for (Mat m : ms) {
+			for (Mat k : keep)
+				if (m == k)
+					continue outer;
+			release(m);
+		}
+	}
+
+	/**
+	 * Drop registry entries of Mats collected without being released, an
+	 * address reused by a newer Mat keeps its entry
+	 */
+	private static void purge() {
+		for (Object o; (o = COLLECTED.poll()) != null;)
+			LIVE.remove(((Owned) o).address, o);
+	}
+
+	/**
+	 * @return number of registered Mats not yet released
+	 */
+	public static int live() {
+		purge();
+		int res = 0;
+		for (Owned o : LIVE.values())
+			res += o.get() != null ? 1 : 0;
+		return res;
+	}
+
+	/**
+	 * @return native bytes held by registered Mats not yet released (submats
+	 *         are counted with their own extent)
+	 */
+	public static long liveBytes() {
+		purge();
+		long res = 0;
+		for (Owned o : LIVE.values()) {
+			Mat m = o.get();
+			if (m != null)
+				res += m.total() * m.elemSize();
+		}
+		return res;
+	}
+
+	/**
+	 * @return number of live Mats by owner
+	 */
+	public static Map<String, Integer> report() {
+		purge();
+		Map<String, Integer> res = new TreeMap<String, Integer>();
+		for (Owned o : LIVE.values())
+			if (o.get() != null)
+				res.merge(o.owner, 1, Integer::sum);
+		return res;
+	}
+}
@@ -0,0 +1,181 @@
+package image_procs;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+public class MetricsRegistry {
+
+	// bucket upper bounds
+	private static final double[] SECONDS = { .001, .0025, .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10 };
+	private static final double[] CONTOURS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+	private static final double[] EFFORT = { 1, 2, 3, 5, 10, 20, 50, 100, 200 };
+	private static final double[] BYTES = { 1 << 20, 4 << 20, 16 << 20, 64 << 20, 256 << 20, 1 << 30, 4L << 30 };
+
+	/**
+	 * Cumulative histogram over fixed buckets, safe for concurrent observers
+	 */
+	public static class Histogram {
+		protected final double[] bounds; // bucket upper bounds, ascending
+		protected final AtomicLongArray buckets; // count per bucket, last one is +Inf
+		protected final DoubleAdder sum = new DoubleAdder();
+		protected final AtomicLong count = new AtomicLong();
+
+		public Histogram(double[] bounds) {
+			this.bounds = bounds;
+			buckets = new AtomicLongArray(bounds.length + 1);
+		}
+
+		public void observe(double v) {
+			int i = 0;
+			while (i < bounds.length && v > bounds[i])
+				i++;
+			buckets.incrementAndGet(i);
+			sum.add(v);
+			count.incrementAndGet();
+		}
+
+		/**
+		 * @param i bucket index, bounds.length for +Inf
+		 * @return number of observations not larger than the bound of bucket i
+		 */
+		public long cumulative(int i) {
+			long res = 0;
+			for (int j = 0; j <= i; j++)
+				res += buckets.get(j);
+			return res;
+		}
+	}
+
+	// derived
+	protected Map<ChipMetrics.Stage, Histogram> stages; // latency per stage, in seconds
+	protected Histogram contours; // contours per findContours call
+	protected Histogram candidates; // sweep candidates per image
+	protected Histogram nativeBytes; // native bytes per image
+	protected AtomicLong images, located; // images recorded / successfully analysed
+
+	public MetricsRegistry() {
+		stages = new EnumMap<ChipMetrics.Stage, Histogram>(ChipMetrics.Stage.class);
+		for (ChipMetrics.Stage s : ChipMetrics.Stage.values())
+			stages.put(s, new Histogram(SECONDS));
+		contours = new Histogram(CONTOURS);
+		candidates = new Histogram(EFFORT);
+		nativeBytes = new Histogram(BYTES);
+		images = new AtomicLong();
+		located = new AtomicLong();
+	}
+
+	protected void observe(ChipMetrics.Stage stage, long nanos) {
+		stages.get(stage).observe(nanos / 1e9);
+	}
+
+	protected void observeContours(int n) {
+		contours.observe(n);
+	}
+
+	/**
+	 * Add the per image counters of a finished record
+	 *
+	 * @param m finished record
+	 */
+	protected void record(ChipMetrics m) {
+		images.incrementAndGet();
+		if (m.located)
+			located.incrementAndGet();
+		candidates.observe(m.counter(ChipMetrics.Counter.CANDIDATES));
+		nativeBytes.observe(
+				m.counter(ChipMetrics.Counter.RELEASED_BYTES) + m.counter(ChipMetrics.Counter.RETAINED_BYTES));
+	}
+
+	private static String number(double v) {
+		return v == Math.rint(v) && Math.abs(v) < 1e15 ? Long.toString((long) v) : Double.toString(v);
+	}
+
+	private static void prometheus(StringBuilder sb, String name, String labels, Histogram h) {
+		String sep = labels.isEmpty() ? "" : ",";
+		for (int i = 0; i <= h.bounds.length; i++) {
+			String le = i < h.bounds.length ? number(h.bounds[i]) : "+Inf";
+			sb.append(name).append("_bucket{").append(labels).append(sep).append("le=\"").append(le).append("\"} ")
+					.append(h.cumulative(i)).append('\n');
+		}
+		String lb = labels.isEmpty() ? "" : "{" + labels + "}";
+		sb.append(name).append("_sum").append(lb).append(' ').append(number(h.sum.sum())).append('\n');
+		sb.append(name).append("_count").append(lb).append(' ').append(h.count.get()).append('\n');
+	}
+
+	/**
+	 * @return all metrics in Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP chip_images_total Images analysed.\n# TYPE chip_images_total counter\n");
+		sb.append("chip_images_total ").append(images.get()).append('\n');
+		sb.append("# HELP chip_located_total Images the chip was located in.\n# TYPE chip_located_total counter\n");
+		sb.append("chip_located_total ").append(located.get()).append('\n');
+		sb.append("# HELP chip_stage_seconds Latency of pipeline stages.\n# TYPE chip_stage_seconds histogram\n");
+		for (Map.Entry<ChipMetrics.Stage, Histogram> e : stages.entrySet())
+			prometheus(sb, "chip_stage_seconds", "stage=\"" + e.getKey().label() + "\"", e.getValue());
+		sb.append("# HELP chip_contours Contours produced per findContours call.\n# TYPE chip_contours histogram\n");
+		prometheus(sb, "chip_contours", "", contours);
+		sb.append("# HELP chip_candidates Sweep candidates tried per image.\n# TYPE chip_candidates histogram\n");
+		prometheus(sb, "chip_candidates", "", candidates);
+		sb.append("# HELP chip_native_bytes Native bytes released or retained per image.\n");
+		sb.append("# TYPE chip_native_bytes histogram\n");
+		prometheus(sb, "chip_native_bytes", "", nativeBytes);
+		return sb.toString();
+	}
+
+	private static void json(StringBuilder sb, Histogram h) {
+		sb.append("{\"count\":").append(h.count.get()).append(",\"sum\":").append(number(h.sum.sum()))
+				.append(",\"buckets\":[");
+		for (int i = 0; i <= h.bounds.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			String le = i < h.bounds.length ? number(h.bounds[i]) : "\"+Inf\"";
+			sb.append('[').append(le).append(',').append(h.cumulative(i)).append(']');
+		}
+		sb.append("]}");
+	}
+
+	/**
+	 * @return all metrics as a JSON object, buckets are cumulative [le, count]
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{\"images\":").append(images.get());
+		sb.append(",\"located\":").append(located.get()).append(",\"stage_seconds\":{");
+		boolean first = true;
+		for (Map.Entry<ChipMetrics.Stage, Histogram> e : stages.entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append('"').append(e.getKey().label()).append("\":");
+			json(sb, e.getValue());
+		}
+		sb.append("},\"contours\":");
+		json(sb, contours);
+		sb.append(",\"candidates\":");
+		json(sb, candidates);
+		sb.append(",\"native_bytes\":");
+		json(sb, nativeBytes);
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * @param s string to be quoted
+	 * @return s as a JSON string literal
+	 */
+	public static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+}
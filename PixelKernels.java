@@ -0,0 +1,189 @@
+package image_procs;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.opencv.core.Mat;
+
+/**
+ * Fused single pass kernels for per pixel arithmetic on 8-bit images, in place
+ * of chains of OpenCV calls that each make a full pass over the image and a
+ * JNI round trip. The kernels work on primitive byte arrays with unsigned
+ * saturating semantics, bit for bit what the OpenCV chains compute. They are
+ * vectorised with jdk.incubator.vector when the module is present (run with
+ * --add-modules jdk.incubator.vector) and fall back to scalar loops otherwise
+ * or with -Dchip.simd=false.
+ */
+public final class PixelKernels {
+
+	// whether the vectorised kernels are used
+	static final boolean SIMD = !"false".equals(System.getProperty("chip.simd"))
+			&& ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+	private PixelKernels() {
+	}
+
+	/**
+	 * Shift every non-zero pixel up by its channel's shift, saturating at 255 -
+	 * the mask, multiply and add of ImageKit.normalization
+	 *
+	 * @param px       interleaved pixels, updated in place
+	 * @param channels number of interleaved channels
+	 * @param shift    shift per channel, 0 - 255
+	 */
+	public static void shiftNonZero(byte[] px, int channels, int[] shift) {
+		if (SIMD)
+			VectorKernels.shiftNonZero(px, channels, shift);
+		else
+			scalarShiftNonZero(px, 0, px.length, channels, shift);
+	}
+
+	/**
+	 * not(not(mask) + not(img)), i.e. max(0, mask + img - 255): img where mask
+	 * is white, black where it is black - Chip.maskInvAdd
+	 *
+	 * @param mask mask pixels
+	 * @param img  image pixels of the same layout
+	 * @param dst  receives the merge, may be one of the inputs
+	 */
+	public static void maskInvAdd(byte[] mask, byte[] img, byte[] dst) {
+		if (SIMD)
+			VectorKernels.maskInvAdd(mask, img, dst);
+		else
+			scalarMaskInvAdd(mask, img, dst, 0, dst.length);
+	}
+
+	/**
+	 * not(not(a) + b), i.e. max(0, a - b): areas white in a but black in b -
+	 * Chip.subtract
+	 *
+	 * @param a   minuend pixels
+	 * @param b   subtrahend pixels of the same layout
+	 * @param dst receives the difference, may be one of the inputs
+	 */
+	public static void subtract(byte[] a, byte[] b, byte[] dst) {
+		if (SIMD)
+			VectorKernels.subtract(a, b, dst);
+		else
+			scalarSubtract(a, b, dst, 0, dst.length);
+	}
+
+	// scalar kernels, also the tails of the vectorised ones
+
+	static void scalarShiftNonZero(byte[] px, int from, int to, int channels, int[] shift) {
+		for (int i = from, c = from % channels; i < to; i++, c = c + 1 == channels ? 0 : c + 1) {
+			int v = px[i] & 0xFF;
+			if (v != 0)
+				px[i] = (byte) Math.min(255, v + shift[c]);
+		}
+	}
+
+	static void scalarMaskInvAdd(byte[] mask, byte[] img, byte[] dst, int from, int to) {
+		for (int i = from; i < to; i++)
+			dst[i] = (byte) Math.max(0, (mask[i] & 0xFF) + (img[i] & 0xFF) - 255);
+	}
+
+	static void scalarSubtract(byte[] a, byte[] b, byte[] dst, int from, int to) {
+		for (int i = from; i < to; i++)
+			dst[i] = (byte) Math.max(0, (a[i] & 0xFF) - (b[i] & 0xFF));
+	}
+
+	// Mat wrappers, one copy in and out instead of a pass per operation
+
+	/**
+	 * @param m 8-bit image
+	 * @return all pixels of m, interleaved
+	 */
+	public static byte[] pixels(Mat m) {
+		byte[] res = new byte[(int) (m.total() * m.channels())];
+		m.get(0, 0, res);
+		return res;
+	}
+
+	/**
+	 * @param mask 8-bit mask
+	 * @param img  8-bit image of the same size and type
+	 * @return merge as in maskInvAdd, owned by the caller
+	 */
+	public static Mat maskInvAdd(Mat mask, Mat img) {
+		byte[] px = pixels(img);
+		maskInvAdd(pixels(mask), px, px);
+		Mat res = new Mat(img.size(), img.type());
+		res.put(0, 0, px);
+		return res;
+	}
+
+	/**
+	 * @param a 8-bit image
+	 * @param b 8-bit image of the same size and type
+	 * @return difference as in subtract, owned by the caller
+	 */
+	public static Mat subtract(Mat a, Mat b) {
+		byte[] px = pixels(a);
+		subtract(px, pixels(b), px);
+		Mat res = new Mat(a.size(), a.type());
+		res.put(0, 0, px);
+		return res;
+	}
+
+	/**
+	 * Check the vectorised kernels against the scalar ones on random pixels,
+	 * including the all 0 and all 255 edge cases
+	 */
+	public static void main(String[] args) {
+		System.out.println("SIMD " + (SIMD ? "enabled" : "unavailable, run with --add-modules jdk.incubator.vector"));
+		if (!SIMD)
+			return;
+		Random rnd = new Random(42);
+		int mismatches = 0, runs = 0;
+		for (int n : new int[] { 0, 1, 7, 31, 64, 1000, 420 * 420 * 3 + 5 }) {
+			for (int fill = 0; fill < 3; fill++, runs += 3) {
+				byte[] a = new byte[n], b = new byte[n];
+				if (fill == 0) {
+					rnd.nextBytes(a);
+					rnd.nextBytes(b);
+				} else {
+					Arrays.fill(a, (byte) (fill == 1 ? 0 : 255));
+					Arrays.fill(b, (byte) (fill == 1 ? 255 : 0));
+				}
+				int[] shift = { rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256) };
+
+				byte[] sv = a.clone(), ss = a.clone();
+				VectorKernels.shiftNonZero(sv, 3, shift);
+				scalarShiftNonZero(ss, 0, n, 3, shift);
+				mismatches += Arrays.equals(sv, ss) ? 0 : 1;
+
+				byte[] mv = new byte[n], ms = new byte[n];
+				VectorKernels.maskInvAdd(a, b, mv);
+				scalarMaskInvAdd(a, b, ms, 0, n);
+				mismatches += Arrays.equals(mv, ms) ? 0 : 1;
+
+				byte[] dv = new byte[n], ds = new byte[n];
+				VectorKernels.subtract(a, b, dv);
+				scalarSubtract(a, b, ds, 0, n);
+				mismatches += Arrays.equals(dv, ds) ? 0 : 1;
+			}
+		}
+		System.out.println(mismatches + " of " + runs + " kernel runs differ from the scalar reference");
+
+		byte[] px = new byte[420 * 420 * 3], dst = new byte[px.length];
+		rnd.nextBytes(px);
+		int[] shift = { 20, 35, 50 };
+		for (int round = 0; round < 3; round++) { // the last round runs compiled code
+			long t0 = System.nanoTime();
+			for (int i = 0; i < 200; i++)
+				VectorKernels.maskInvAdd(px, px, dst);
+			long t1 = System.nanoTime();
+			for (int i = 0; i < 200; i++)
+				scalarMaskInvAdd(px, px, dst, 0, px.length);
+			long t2 = System.nanoTime();
+			for (int i = 0; i < 200; i++)
+				VectorKernels.shiftNonZero(dst, 3, shift);
+			long t3 = System.nanoTime();
+			for (int i = 0; i < 200; i++)
+				scalarShiftNonZero(dst, 0, dst.length, 3, shift);
+			long t4 = System.nanoTime();
+			System.out.printf("maskInvAdd %.3f / %.3f ms, shiftNonZero %.3f / %.3f ms (vector / scalar)%n",
+					(t1 - t0) / 2e8, (t2 - t1) / 2e8, (t3 - t2) / 2e8, (t4 - t3) / 2e8);
+		}
+	}
+}
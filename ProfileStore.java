@@ -0,0 +1,177 @@
+package image_procs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Boost/threshold settings that located chips, counted per acquisition
+ * profile. Counts are kept in memory and written to the store file every
+ * saveEvery successes and on close, so recording stays off the file system
+ * and free of a global lock on the workers' hot path.
+ */
+public class ProfileStore implements AutoCloseable {
+
+	// acquisition profile encoded in filenames, e.g. lighttray_900lux_1min
+	private static final Pattern PROFILE = Pattern.compile("([a-z]+)_(\\d+)lux_(\\d+)min");
+
+	// given
+	protected Path file; // properties file the store is persisted to
+	protected int saveEvery; // successes recorded between saves
+
+	// derived
+	protected Map<String, Map<String, Integer>> counts; // profile -> "boost/threshold" -> # of successes
+	protected AtomicInteger unsaved; // successes recorded since the last save
+
+	/**
+	 * @param file      properties file the store is loaded from, if it exists,
+	 *                  and saved to
+	 * @param saveEvery successes recorded between saves, close saves the rest
+	 * @throws IOException
+	 */
+	public ProfileStore(Path file, int saveEvery) throws IOException {
+		this.file = file;
+		this.saveEvery = Math.max(1, saveEvery);
+		counts = new ConcurrentHashMap<String, Map<String, Integer>>();
+		unsaved = new AtomicInteger();
+		if (!Files.exists(file))
+			return;
+		Properties props = new Properties();
+		try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(r);
+		}
+		// each entry - profile = boost/threshold:count boost/threshold:count ...
+		for (String profile : props.stringPropertyNames()) {
+			Map<String, Integer> cur = new ConcurrentSkipListMap<String, Integer>();
+			for (String tok : props.getProperty(profile).trim().split("\\s+")) {
+				int colon = tok.indexOf(':');
+				if (colon > 0)
+					cur.put(tok.substring(0, colon), Integer.parseInt(tok.substring(colon + 1)));
+			}
+			counts.put(profile, cur);
+		}
+	}
+
+	public ProfileStore(Path file) throws IOException {
+		this(file, 32);
+	}
+
+	/**
+	 * Extract acquisition profile (tray, lux level, exposure) from image filename
+	 *
+	 * @param filename image filename
+	 * @return profile such as lighttray_900lux_1min, null if filename carries none
+	 */
+	public static String profileOf(String filename) {
+		String nm = Paths.get(filename).getFileName().toString().toLowerCase();
+		Matcher m = PROFILE.matcher(nm);
+		return m.find() ? m.group() : null;
+	}
+
+	/**
+	 * Setting that located the chip most often for given profile
+	 *
+	 * @param profile acquisition profile
+	 * @return {boost, threshold}, null if nothing was learned yet
+	 */
+	public int[] lookup(String profile) {
+		Map<String, Integer> cur = profile == null ? null : counts.get(profile);
+		if (cur == null || cur.isEmpty())
+			return null;
+		String top = null;
+		for (Map.Entry<String, Integer> e : cur.entrySet())
+			if (top == null || e.getValue() > cur.get(top))
+				top = e.getKey();
+		String[] bt = top.split("/");
+		return new int[] { Integer.parseInt(bt[0]), Integer.parseInt(bt[1]) };
+	}
+
+	/**
+	 * Record a successful setting for given profile, the store is saved every
+	 * saveEvery records
+	 *
+	 * @param profile   acquisition profile, ignored if null
+	 * @param boost     number of L channel increments chip was located with
+	 * @param threshold thresholding value chip was located with
+	 * @throws IOException
+	 */
+	public void record(String profile, int boost, int threshold) throws IOException {
+		if (profile == null)
+			return;
+		counts.computeIfAbsent(profile, k -> new ConcurrentSkipListMap<String, Integer>())
+				.merge(boost + "/" + threshold, 1, Integer::sum);
+		if (unsaved.incrementAndGet() >= saveEvery)
+			save();
+	}
+
+	/**
+	 * Save the successes recorded since the last save
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (unsaved.get() > 0)
+			save();
+	}
+
+	/**
+	 * Write store to a temporary file and move it over the old one, so a crash
+	 * never leaves a truncated store behind
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void save() throws IOException {
+		unsaved.set(0); // records racing with the snapshot are saved next time at the latest
+		Properties props = new Properties();
+		for (Map.Entry<String, Map<String, Integer>> e : counts.entrySet()) {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Integer> bt : e.getValue().entrySet())
+				sb.append(bt.getKey()).append(':').append(bt.getValue()).append(' ');
+			props.setProperty(e.getKey(), sb.toString().trim());
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			props.store(w, "successful boost/threshold:count per acquisition profile");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reorder sweep so the learned threshold comes first, followed by its
+	 * neighbours searching outward (+10, -10, +20, -20 ...)
+	 *
+	 * @param thresholds thresholding values in default sweep order
+	 * @param learned    learned threshold, null to keep the default order
+	 * @return reordered thresholding values, containing the same values
+	 */
+	public static List<Integer> outward(List<Integer> thresholds, Integer learned) {
+		if (learned == null || thresholds.isEmpty())
+			return thresholds;
+		List<Integer> rest = new ArrayList<Integer>(thresholds), res = new ArrayList<Integer>();
+		while (!rest.isEmpty()) {
+			int next = 0;
+			for (int i = 1; i < rest.size(); i++) { // closest to learned, upward first on ties
+				int di = Math.abs(rest.get(i) - learned), dn = Math.abs(rest.get(next) - learned);
+				if (di < dn || di == dn && rest.get(i) > rest.get(next))
+					next = i;
+			}
+			res.add(rest.remove(next));
+		}
+		return res;
+	}
+}
@@ -0,0 +1,133 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Core;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+/**
+ * Compares the pyramid search (see ChipOptions.pyramid) with the full
+ * resolution one on the same images: time of each path and deviation of the
+ * corners they find. Both paths are run once on the first image before
+ * anything is measured, and their order alternates from image to image, so
+ * neither is timed cold or always after the other.
+ */
+public class PyramidComparison {
+
+	// given
+	protected int[] size; // chip design data
+	protected int edge; // longer edge of the downscaled search image
+
+	// derived
+	protected long fullNanos, pyramidNanos; // total time spent by each path
+	protected double maxDeviation; // largest corner deviation seen, in pixels
+	protected double sumDeviation; // sum of mean corner deviations
+	protected int compared; // number of images both paths located the chip in
+	protected boolean warm; // whether both paths have run once
+
+	public PyramidComparison(int[] size, int edge) {
+		this.size = size;
+		this.edge = edge;
+	}
+
+	/**
+	 * Distance between corresponding corners
+	 *
+	 * @param a/b corners in the same order
+	 * @return largest and mean distance, infinity if the number of corners differs
+	 */
+	private static double[] deviation(MatOfPoint2f a, MatOfPoint2f b) {
+		Point[] pa = a.toArray(), pb = b.toArray();
+		if (pa.length != pb.length)
+			return new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double max = 0, sum = 0;
+		for (int i = 0; i < pa.length; i++) {
+			double d = Math.hypot(pa[i].x - pb[i].x, pa[i].y - pb[i].y);
+			max = Math.max(max, d);
+			sum += d;
+		}
+		return new double[] { max, sum / pa.length };
+	}
+
+	/**
+	 * Analyse image through full resolution and pyramid path and compare corners
+	 *
+	 * @param filename image to be analysed
+	 * @throws IOException
+	 */
+	public void compare(String filename) throws IOException {
+		if (!warm) { // load classes and JIT compile both paths outside the measurement
+			warm = true;
+			try {
+				new Chip(filename, size).release();
+				new Chip(filename, size, new ChipOptions().pyramid(edge)).release();
+			} catch (IllegalArgumentException e) { // the measured run reports it
+			}
+		}
+		boolean fullFirst = compared % 2 == 0;
+		Chip full = null, coarse = null;
+		long fullTime = 0, pyramidTime = 0;
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				long t0 = System.nanoTime();
+				if ((pass == 0) == fullFirst) {
+					full = new Chip(filename, size);
+					fullTime = System.nanoTime() - t0;
+				} else {
+					coarse = new Chip(filename, size, new ChipOptions().pyramid(edge));
+					pyramidTime = System.nanoTime() - t0;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			if (full != null)
+				full.release();
+			if (coarse != null)
+				coarse.release();
+			throw e;
+		}
+		fullNanos += fullTime;
+		pyramidNanos += pyramidTime;
+
+		double[] mj = deviation(full.mjCorners, coarse.mjCorners), mr = deviation(full.mrCorners, coarse.mrCorners);
+		maxDeviation = Math.max(maxDeviation, Math.max(mj[0], mr[0]));
+		sumDeviation += (mj[1] + mr[1]) / 2;
+		compared++;
+		System.out.printf("%s: full %d ms, pyramid %d ms, mj dev %.2f px, mr dev %.2f px%n", filename,
+				fullTime / 1000000, pyramidTime / 1000000, mj[0], mr[0]);
+		full.release();
+		coarse.release();
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length < 2) {
+			System.out.println("usage: PyramidComparison <edge> <directory | image...>");
+			return;
+		}
+		int[] size = { 7, 6, 20, 27, 40, 30, 35, 30, 15, 420 };
+		PyramidComparison pc = new PyramidComparison(size, Integer.parseInt(args[0]));
+		List<String> nms = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			File f = new File(args[i]);
+			if (f.isDirectory())
+				nms.addAll(BatchAnalyzer.listImages(f));
+			else
+				nms.add(args[i]);
+		}
+		for (String nm : nms) {
+			try {
+				pc.compare(nm);
+			} catch (IllegalArgumentException e) {
+				System.out.println(nm + ": " + e.getMessage());
+			}
+		}
+		if (pc.compared == 0)
+			return;
+		System.out.printf("%d images: full %.1f ms/image, pyramid %.1f ms/image, mean dev %.2f px, max dev %.2f px%n",
+				pc.compared, pc.fullNanos / 1e6 / pc.compared, pc.pyramidNanos / 1e6 / pc.compared,
+				pc.sumDeviation / pc.compared, pc.maxDeviation);
+	}
+}
@@ -0,0 +1,281 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Core;
+
+/**
+ * Replays a corpus of reference images through the full Chip pipeline and
+ * gates changes on accuracy and latency. Recording stores the result of every
+ * image as golden file (columnar, see ResultWriter); checking compares corners
+ * and block values against it within tolerances, records per image latency
+ * percentiles and the peak native memory held by Mats, and reports every
+ * budget that was exceeded.
+ *
+ * ReplayHarness record|check <directory> [golden file] - the golden file
+ * defaults to golden.chip in the directory, budgets are read from
+ * -Dreplay.budgets=<properties file> (see Budgets). check exits with status 1
+ * on any violation. Only images the pipeline rejects count as not located,
+ * any other exception aborts the replay, so a crash can never be recorded or
+ * passed as a golden failure.
+ */
+public class ReplayHarness {
+
+	/**
+	 * Limits a replay must stay within, 0 disables a latency or memory limit
+	 */
+	public static class Budgets {
+		protected double cornerPx = 2; // largest corner deviation from golden, in pixels
+		protected int blockValue = 3; // largest block value deviation from golden, per channel
+		protected int lost; // golden located images the replay may fail on
+		protected double p50Ms, p95Ms, p99Ms; // latency percentiles per image
+		protected long peakBytes; // native bytes held by live Mats at any time
+
+		/**
+		 * @param props entries corner.px, block.value, lost, p50.ms, p95.ms,
+		 *              p99.ms, peak.mb; missing ones keep their default
+		 * @return budgets
+		 */
+		public static Budgets of(Properties props) {
+			Budgets res = new Budgets();
+			res.cornerPx = Double.parseDouble(props.getProperty("corner.px", "" + res.cornerPx));
+			res.blockValue = Integer.parseInt(props.getProperty("block.value", "" + res.blockValue));
+			res.lost = Integer.parseInt(props.getProperty("lost", "" + res.lost));
+			res.p50Ms = Double.parseDouble(props.getProperty("p50.ms", "0"));
+			res.p95Ms = Double.parseDouble(props.getProperty("p95.ms", "0"));
+			res.p99Ms = Double.parseDouble(props.getProperty("p99.ms", "0"));
+			res.peakBytes = (long) (Double.parseDouble(props.getProperty("peak.mb", "0")) * (1 << 20));
+			return res;
+		}
+	}
+
+	// given
+	protected List<String> filenames; // reference images
+	protected ChipLayout layout; // compiled chip design, shared by all images
+	protected ChipOptions options; // analysis modes under test
+
+	// derived
+	protected AnalysisService.Latencies latencies; // latency of every replayed image
+	protected AtomicLong peakBytes; // most native bytes held by live Mats during the replay
+
+	public ReplayHarness(List<String> filenames, ChipLayout layout, ChipOptions options) {
+		this.filenames = filenames;
+		this.layout = layout;
+		this.options = options;
+		latencies = new AnalysisService.Latencies(Math.max(1, filenames.size()));
+		peakBytes = new AtomicLong();
+	}
+
+	/**
+	 * Analyse every image one after another, so latencies are not skewed by
+	 * contention - update latencies, peakBytes
+	 *
+	 * @param warmUp number of untimed passes over the corpus before the timed
+	 *               one, so the timed pass runs compiled code
+	 * @return result of every image of the timed pass, in corpus order
+	 * @throws IOException if an image cannot be read
+	 */
+	public List<ChipResult> run(int warmUp) throws IOException {
+		for (int i = 0; i < warmUp; i++)
+			for (String fn : filenames)
+				analyse(fn);
+		Thread sampler = new Thread(() -> {
+			try {
+				while (true) {
+					peakBytes.accumulateAndGet(MatScope.liveBytes(), Math::max);
+					Thread.sleep(2);
+				}
+			} catch (InterruptedException e) { // replay finished
+			}
+		}, "ReplayHarness");
+		sampler.setDaemon(true);
+		sampler.start();
+		List<ChipResult> res = new ArrayList<ChipResult>();
+		try {
+			for (String fn : filenames) {
+				ChipResult r = analyse(fn);
+				latencies.record(r.nanos);
+				res.add(r);
+			}
+		} finally {
+			sampler.interrupt();
+		}
+		return res;
+	}
+
+	/**
+	 * Analyse one image, a chip that cannot be located is captured as failed
+	 * result, anything else is thrown
+	 */
+	private ChipResult analyse(String filename) throws IOException {
+		long start = System.nanoTime();
+		Chip chip;
+		try {
+			chip = new Chip(filename, layout, options);
+		} catch (IllegalArgumentException e) { // chip cannot be located
+			return ChipResult.failed(filename, e, System.nanoTime() - start);
+		}
+		peakBytes.accumulateAndGet(MatScope.liveBytes(), Math::max); // everything of the chip is still held
+		ChipResult res = ChipResult.of(chip, System.nanoTime() - start);
+		chip.release();
+		return res;
+	}
+
+	/**
+	 * Compare a replay with golden results and its latency and memory with the
+	 * budgets
+	 *
+	 * @param golden  golden result by image name, see key
+	 * @param actual  results of run
+	 * @param budgets limits
+	 * @return description of every violation, empty if the replay passed
+	 */
+	public List<String> check(Map<String, ChipResult> golden, List<ChipResult> actual, Budgets budgets) {
+		List<String> res = new ArrayList<String>(), lost = new ArrayList<String>();
+		for (ChipResult a : actual) {
+			ChipResult g = golden.get(key(a.filename));
+			if (g == null) {
+				res.add(key(a.filename) + ": no golden result, record it first");
+				continue;
+			}
+			if (!g.located)
+				continue; // nothing to compare against, a newly located image is no regression
+			if (!a.located) {
+				lost.add(key(a.filename) + ": no longer located - " + a.error);
+				continue;
+			}
+			double dc = Math.max(deviation(g.mjCorners, a.mjCorners), deviation(g.mrCorners, a.mrCorners));
+			if (dc > budgets.cornerPx)
+				res.add(String.format("%s: corners off by %.2f px, budget %.2f", key(a.filename), dc,
+						budgets.cornerPx));
+			int dv = deviation(g.blockValue, a.blockValue);
+			if (dv > budgets.blockValue)
+				res.add(String.format("%s: block values off by %d, budget %d", key(a.filename), dv,
+						budgets.blockValue));
+		}
+		if (lost.size() > budgets.lost)
+			res.addAll(lost);
+		limit(res, "p50", latencies.percentile(50) / 1e6, budgets.p50Ms, "ms");
+		limit(res, "p95", latencies.percentile(95) / 1e6, budgets.p95Ms, "ms");
+		limit(res, "p99", latencies.percentile(99) / 1e6, budgets.p99Ms, "ms");
+		limit(res, "peak native memory", peakBytes.get() / (double) (1 << 20), budgets.peakBytes / (double) (1 << 20),
+				"MB");
+		return res;
+	}
+
+	private static void limit(List<String> violations, String what, double value, double budget, String unit) {
+		if (budget > 0 && value > budget)
+			violations.add(String.format("%s %.2f %s, budget %.2f %s", what, value, unit, budget, unit));
+	}
+
+	/**
+	 * @return largest coordinate difference, infinite if the corner counts differ
+	 */
+	private static double deviation(float[] a, float[] b) {
+		if (a.length != b.length)
+			return Double.POSITIVE_INFINITY;
+		double res = 0;
+		for (int i = 0; i < a.length; i++)
+			res = Math.max(res, Math.abs(a[i] - b[i]));
+		return res;
+	}
+
+	/**
+	 * @return largest channel difference, Integer.MAX_VALUE if the layouts differ
+	 */
+	private static int deviation(int[][] a, int[][] b) {
+		if (a.length != b.length)
+			return Integer.MAX_VALUE;
+		int res = 0;
+		for (int id = 0; id < a.length; id++)
+			for (int c = 0; c < a[id].length; c++)
+				res = Math.max(res, Math.abs(a[id][c] - b[id][c]));
+		return res;
+	}
+
+	/**
+	 * @param filename image file
+	 * @return name golden results are matched by, independent of the corpus location
+	 */
+	public static String key(String filename) {
+		return new File(filename).getName();
+	}
+
+	/**
+	 * @param file golden file written by record
+	 * @return golden result by image name
+	 * @throws IOException
+	 */
+	public static Map<String, ChipResult> golden(Path file) throws IOException {
+		Map<String, ChipResult> res = new HashMap<String, ChipResult>();
+		for (ChipResult r : ResultWriter.Columnar.read(file))
+			res.put(key(r.filename), r);
+		return res;
+	}
+
+	/**
+	 * Replace the golden file with given results
+	 *
+	 * @param file    golden file
+	 * @param results results of run
+	 * @throws IOException
+	 */
+	public static void record(Path file, List<ChipResult> results) throws IOException {
+		Files.deleteIfExists(file);
+		try (ResultWriter w = new ResultWriter.Columnar(file, 256)) {
+			for (ChipResult r : results)
+				w.write(r);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length < 2 || !args[0].equals("record") && !args[0].equals("check")) {
+			System.out.println("usage: ReplayHarness record|check <directory> [golden file]");
+			return;
+		}
+		File dir = new File(args[1]);
+		Path goldenFile = args.length > 2 ? Paths.get(args[2]) : dir.toPath().resolve("golden.chip");
+		ChipLayout layout = ChipLayout.parse(System.getProperty("chip.layout", "default"));
+		ChipOptions options = new ChipOptions().reduce(Integer.getInteger("chip.reduce", 1))
+				.pyramid(Integer.getInteger("chip.pyramid", 0))
+				.triage(Boolean.getBoolean("chip.triage") ? new Triage() : null);
+		ReplayHarness rh = new ReplayHarness(BatchAnalyzer.listImages(dir), layout, options);
+		List<ChipResult> results = rh.run(Integer.getInteger("replay.warmup", 1));
+		int located = 0;
+		for (ChipResult r : results)
+			located += r.located ? 1 : 0;
+		System.out.printf("%d images, %d located, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, peak native %.1f MB%n",
+				results.size(), located, rh.latencies.percentile(50) / 1e6, rh.latencies.percentile(95) / 1e6,
+				rh.latencies.percentile(99) / 1e6, rh.peakBytes.get() / (double) (1 << 20));
+		if (args[0].equals("record")) {
+			record(goldenFile, results);
+			System.out.println("golden results written to " + goldenFile);
+			return;
+		}
+
+		Properties props = new Properties();
+		String budgetFile = System.getProperty("replay.budgets");
+		if (budgetFile != null)
+			try (Reader r = Files.newBufferedReader(Paths.get(budgetFile), StandardCharsets.UTF_8)) {
+				props.load(r);
+			}
+		List<String> violations = rh.check(golden(goldenFile), results, Budgets.of(props));
+		for (String v : violations)
+			System.out.println("FAIL " + v);
+		System.out.println(violations.isEmpty() ? "PASS" : violations.size() + " violations");
+		if (!violations.isEmpty())
+			System.exit(1);
+	}
+}
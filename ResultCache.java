@@ -0,0 +1,168 @@
+package image_procs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of chip results keyed by the SHA-256 of the encoded image,
+ * the layout, every option that can change the result (see
+ * ChipOptions.signature) and the threshold the sweep starts from, so a result
+ * is only served to the mode that produced it. Re-analysing an archived image skips
+ * the threshold sweep. Each entry is a one row ResultWriter.Columnar file,
+ * written to a temporary file and atomically moved into place, so parallel
+ * workers and processes only ever see complete entries. Least recently used
+ * entries are evicted once the cache grows beyond its size limit.
+ */
+public class ResultCache {
+
+	private static final String SUFFIX = ".chip";
+
+	// given
+	protected Path dir; // directory holding the entries
+	protected long maxBytes; // size limit of all entries together
+
+	// derived
+	protected AtomicLong bytes; // size of all entries, as far as this process knows
+	protected AtomicLong hits, misses; // counters
+
+	public ResultCache(Path dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(dir);
+		bytes = new AtomicLong();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		for (Path p : entries())
+			bytes.addAndGet(size(p));
+	}
+
+	/**
+	 * @param image   encoded image between position and limit, left unchanged
+	 * @param layout  compiled design of the chip
+	 * @param options analysis modes of the chip
+	 * @param start   threshold the sweep starts from, which can pick a
+	 *                different winning threshold, null if none
+	 * @return key of the analysis of image with that layout and those modes
+	 */
+	public static String key(ByteBuffer image, ChipLayout layout, ChipOptions options, Integer start) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) { // every JRE has SHA-256
+			throw new IllegalStateException(e);
+		}
+		md.update(image.duplicate());
+		md.update((Arrays.toString(layout.size()) + "/" + options.signature() + "/start=" + start)
+				.getBytes(StandardCharsets.US_ASCII));
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	/**
+	 * @param key key of the analysis
+	 * @return cached result, null if there is none
+	 */
+	public ChipResult lookup(String key) {
+		Path p = dir.resolve(key + SUFFIX);
+		try {
+			List<ChipResult> rs = ResultWriter.Columnar.read(p);
+			if (rs.size() != 1)
+				throw new IOException(p + " holds " + rs.size() + " results");
+			Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis())); // recently used
+			hits.incrementAndGet();
+			return rs.get(0);
+		} catch (NoSuchFileException e) { // never cached, or evicted meanwhile
+		} catch (IOException e) { // damaged entry, analyse again and overwrite it
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache the result of an analysis, replacing any earlier one
+	 *
+	 * @param key key of the analysis
+	 * @param r   result, only located results are worth caching
+	 * @throws IOException
+	 */
+	public void store(String key, ChipResult r) throws IOException {
+		Path p = dir.resolve(key + SUFFIX);
+		Path tmp = Files.createTempFile(dir, key, ".tmp");
+		try {
+			try (ResultWriter w = new ResultWriter.Columnar(tmp, 1)) {
+				w.write(r);
+			}
+			long old = size(p);
+			Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			bytes.addAndGet(size(p) - old);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		if (bytes.get() > maxBytes)
+			evict();
+	}
+
+	/**
+	 * Delete least recently used entries until the cache fits its limit
+	 *
+	 * @throws IOException
+	 */
+	protected synchronized void evict() throws IOException {
+		List<Path> ps = entries();
+		long total = 0;
+		long[] sizes = new long[ps.size()], used = new long[ps.size()];
+		Integer[] order = new Integer[ps.size()];
+		for (int i = 0; i < ps.size(); i++) {
+			sizes[i] = size(ps.get(i));
+			used[i] = modified(ps.get(i));
+			total += sizes[i];
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			if (Files.deleteIfExists(ps.get(order[i]))) // another worker may have deleted it already
+				total -= sizes[order[i]];
+		}
+		bytes.set(total); // resynchronise with entries written by other processes
+	}
+
+	private List<Path> entries() throws IOException {
+		List<Path> res = new ArrayList<Path>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path p : ds)
+				res.add(p);
+		}
+		return res;
+	}
+
+	private static long size(Path p) {
+		try {
+			return Files.size(p);
+		} catch (IOException e) { // missing
+			return 0;
+		}
+	}
+
+	private static long modified(Path p) {
+		try {
+			return Files.getLastModifiedTime(p).toMillis();
+		} catch (IOException e) { // missing
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package image_procs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only export of chip results. Both formats can be appended to by
+ * later runs.
+ */
+public abstract class ResultWriter implements AutoCloseable {
+
+	/**
+	 * @param r result to be exported
+	 * @throws IOException
+	 */
+	public abstract void write(ChipResult r) throws IOException;
+
+	@Override
+	public abstract void close() throws IOException;
+
+	/**
+	 * Open writer by file extension - .jsonl for JSON lines, anything else for
+	 * the columnar binary format
+	 *
+	 * @param file file to append to, created if missing
+	 * @return writer
+	 * @throws IOException
+	 */
+	public static ResultWriter open(Path file) throws IOException {
+		return file.toString().endsWith(".jsonl") ? new JsonLines(file) : new Columnar(file, 64, 1000);
+	}
+
+	/**
+	 * One JSON object per line, see ChipResult.toJson
+	 */
+	public static class JsonLines extends ResultWriter {
+		protected BufferedWriter out;
+
+		public JsonLines(Path file) throws IOException {
+			out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		}
+
+		@Override
+		public synchronized void write(ChipResult r) throws IOException {
+			out.write(r.toJson());
+			out.newLine();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Packed binary format of row groups appended to a file starting with
+	 * MAGIC. A row group is the int number of rows followed by one column after
+	 * another, each holding the value of every row: file, located, error,
+	 * boost, threshold, reduction, nanos, stage nanos, mj corners, mr corners,
+	 * block values and major peaks. Pixel values are stored as unsigned bytes,
+	 * corners as floats, all big-endian. Files starting with MAGIC_V1 lack the
+	 * reduction column; they are read with reduction 1 and appended to in
+	 * their own format.
+	 *
+	 * Every row group is forced to disk once written, and a group is written
+	 * once it is full or its first row has waited maxAge, by a timer if no
+	 * further row arrives, so a crash loses at most the rows of the last
+	 * maxAge. A group torn by a crash is ignored by read and cut off before
+	 * the next run appends.
+	 */
+	public static class Columnar extends ResultWriter {
+		public static final byte[] MAGIC = "CHIPCOL2".getBytes(StandardCharsets.US_ASCII);
+		public static final byte[] MAGIC_V1 = "CHIPCOL1".getBytes(StandardCharsets.US_ASCII);
+
+		// writes row groups that reached maxAge, shared by all writers
+		private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ResultWriter");
+			t.setDaemon(true);
+			return t;
+		});
+
+		// given
+		protected int groupSize; // rows buffered before a row group is written
+		protected long maxAge; // nanoseconds the first row of a group waits at most before it is written
+
+		// derived
+		protected FileChannel channel; // file, forced after every row group
+		protected DataOutputStream out;
+		protected List<ChipResult> rows; // rows of the pending row group
+		protected long oldest; // System.nanoTime the first pending row was written at
+		protected ScheduledFuture<?> timer; // writes the pending group once it is maxAge old, null if none
+		protected IOException failure; // error of a timed write, thrown by the next write or close
+		protected int version; // format of the file, 1 or 2
+
+		/**
+		 * @param file      file to append to, created if missing; a torn
+		 *                  trailing row group is cut off
+		 * @param groupSize rows per row group
+		 * @param maxAge    milliseconds a row waits at most before its group
+		 *                  is written, even if not full
+		 * @throws IOException
+		 */
+		public Columnar(Path file, int groupSize, long maxAge) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			boolean fresh = channel.size() == 0;
+			version = 2;
+			try {
+				if (!fresh) {
+					version = version(file);
+					long end = scan(file, null);
+					if (end < channel.size())
+						channel.truncate(end);
+				}
+				channel.position(channel.size());
+			} catch (IOException | RuntimeException e) { // e.g. not a columnar file
+				channel.close();
+				throw e;
+			}
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			if (fresh) {
+				out.write(MAGIC);
+				out.flush(); // readable as an empty result file right away
+			}
+			this.groupSize = groupSize;
+			this.maxAge = maxAge * 1_000_000;
+			rows = new ArrayList<ChipResult>();
+		}
+
+		public Columnar(Path file, int groupSize) throws IOException {
+			this(file, groupSize, 1000);
+		}
+
+		@Override
+		public synchronized void write(ChipResult r) throws IOException {
+			rethrow();
+			rows.add(r);
+			if (rows.size() == 1) {
+				oldest = System.nanoTime();
+				if (groupSize > 1)
+					timer = TIMER.schedule(this::expire, maxAge, TimeUnit.NANOSECONDS);
+			}
+			if (rows.size() >= groupSize || System.nanoTime() - oldest >= maxAge)
+				flushGroup();
+		}
+
+		/**
+		 * Write the pending group if it reached maxAge, on the timer thread
+		 */
+		private synchronized void expire() {
+			if (rows.isEmpty() || System.nanoTime() - oldest < maxAge) // written meanwhile, or a newer group
+				return;
+			try {
+				flushGroup();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		private void rethrow() throws IOException {
+			IOException e = failure;
+			failure = null;
+			if (e != null)
+				throw e;
+		}
+
+		private void corners(float[] c) throws IOException {
+			out.writeShort(c.length / 2);
+			for (float v : c)
+				out.writeFloat(v);
+		}
+
+		private void pixels(int[][] v) throws IOException {
+			out.writeShort(v.length);
+			for (int[] b : v) {
+				out.writeByte(b.length);
+				for (int x : b)
+					out.writeByte(x);
+			}
+		}
+
+		private void flushGroup() throws IOException {
+			if (timer != null) {
+				timer.cancel(false);
+				timer = null;
+			}
+			if (rows.isEmpty())
+				return;
+			out.writeInt(rows.size());
+			for (ChipResult r : rows)
+				out.writeUTF(r.filename == null ? "" : r.filename);
+			for (ChipResult r : rows)
+				out.writeBoolean(r.located);
+			for (ChipResult r : rows)
+				out.writeUTF(r.error == null ? "" : r.error);
+			for (ChipResult r : rows)
+				out.writeByte(r.boost);
+			for (ChipResult r : rows)
+				out.writeShort(r.threshold);
+			if (version >= 2)
+				for (ChipResult r : rows)
+					out.writeByte(r.reduction);
+			for (ChipResult r : rows)
+				out.writeLong(r.nanos);
+			for (ChipResult r : rows) {
+				out.writeByte(r.stageNanos.length);
+				for (long n : r.stageNanos)
+					out.writeLong(n);
+			}
+			for (ChipResult r : rows)
+				corners(r.mjCorners);
+			for (ChipResult r : rows)
+				corners(r.mrCorners);
+			for (ChipResult r : rows)
+				pixels(r.blockValue);
+			for (ChipResult r : rows)
+				pixels(r.majorPeaks);
+			out.flush();
+			channel.force(false); // the group survives a crash from here on
+			rows.clear();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				flushGroup();
+				rethrow();
+			} finally {
+				out.close();
+			}
+		}
+
+		private static float[] corners(DataInputStream in) throws IOException {
+			float[] res = new float[in.readShort() * 2];
+			for (int i = 0; i < res.length; i++)
+				res[i] = in.readFloat();
+			return res;
+		}
+
+		private static int[][] pixels(DataInputStream in) throws IOException {
+			int[][] res = new int[in.readShort()][];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = new int[in.readUnsignedByte()];
+				for (int j = 0; j < res[i].length; j++)
+					res[i][j] = in.readUnsignedByte();
+			}
+			return res;
+		}
+
+		/**
+		 * Input stream counting the bytes read through it
+		 */
+		private static class Counting extends FilterInputStream {
+			long count;
+
+			Counting(InputStream in) {
+				super(in);
+			}
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				count += b < 0 ? 0 : 1;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				count += Math.max(0, n);
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long res = super.skip(n);
+				count += res;
+				return res;
+			}
+		}
+
+		/**
+		 * Read back all complete row groups of a columnar file, a group torn
+		 * by a crash while it was written is ignored
+		 *
+		 * @param file file written by Columnar
+		 * @return results in written order
+		 * @throws IOException
+		 */
+		public static List<ChipResult> read(Path file) throws IOException {
+			List<ChipResult> res = new ArrayList<ChipResult>();
+			scan(file, res);
+			return res;
+		}
+
+		/**
+		 * @param file file written by Columnar
+		 * @param res  receives the rows of every complete row group, null to
+		 *             only find the end
+		 * @return offset just past the last complete row group
+		 * @throws IOException
+		 */
+		private static long scan(Path file, List<ChipResult> res) throws IOException {
+			try (InputStream is = Files.newInputStream(file)) {
+				Counting counting = new Counting(new BufferedInputStream(is, 1 << 16));
+				DataInputStream in = new DataInputStream(counting);
+				int version = version(in, file);
+				long end = counting.count;
+				while (true) {
+					try {
+						group(in, res, version);
+					} catch (EOFException e) { // end of file, or a torn trailing group
+						return end;
+					}
+					end = counting.count;
+				}
+			}
+		}
+
+		/**
+		 * @param file file written by Columnar
+		 * @return format version of the file
+		 * @throws IOException if it is no columnar result file
+		 */
+		private static int version(Path file) throws IOException {
+			try (InputStream is = Files.newInputStream(file)) {
+				return version(new DataInputStream(is), file);
+			}
+		}
+
+		private static int version(DataInputStream in, Path file) throws IOException {
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				in.readFully(magic);
+			} catch (EOFException e) { // shorter than the magic
+				throw new IOException(file + " is not a columnar result file");
+			}
+			if (Arrays.equals(magic, MAGIC))
+				return 2;
+			if (Arrays.equals(magic, MAGIC_V1))
+				return 1;
+			throw new IOException(file + " is not a columnar result file");
+		}
+
+		/**
+		 * Read one row group
+		 *
+		 * @param in      stream positioned at the start of a row group
+		 * @param res     receives its rows, may be null
+		 * @param version format of the file
+		 * @throws EOFException if the file ends before the group does
+		 */
+		private static void group(DataInputStream in, List<ChipResult> res, int version) throws IOException {
+			int n = in.readInt();
+			if (n < 0)
+				throw new IOException("Corrupt row group of " + n + " rows");
+			String[] fn = new String[n], err = new String[n];
+			boolean[] located = new boolean[n];
+			int[] boost = new int[n], thre = new int[n], red = new int[n];
+			long[] nanos = new long[n];
+			long[][] stages = new long[n][];
+			float[][] mj = new float[n][], mr = new float[n][];
+			int[][][] bv = new int[n][][], mp = new int[n][][];
+			for (int i = 0; i < n; i++)
+				fn[i] = in.readUTF();
+			for (int i = 0; i < n; i++)
+				located[i] = in.readBoolean();
+			for (int i = 0; i < n; i++)
+				err[i] = in.readUTF();
+			for (int i = 0; i < n; i++)
+				boost[i] = in.readUnsignedByte();
+			for (int i = 0; i < n; i++)
+				thre[i] = in.readShort();
+			for (int i = 0; i < n; i++)
+				red[i] = version >= 2 ? in.readUnsignedByte() : 1;
+			for (int i = 0; i < n; i++)
+				nanos[i] = in.readLong();
+			for (int i = 0; i < n; i++) {
+				stages[i] = new long[in.readUnsignedByte()];
+				for (int j = 0; j < stages[i].length; j++)
+					stages[i][j] = in.readLong();
+			}
+			for (int i = 0; i < n; i++)
+				mj[i] = corners(in);
+			for (int i = 0; i < n; i++)
+				mr[i] = corners(in);
+			for (int i = 0; i < n; i++)
+				bv[i] = pixels(in);
+			for (int i = 0; i < n; i++)
+				mp[i] = pixels(in);
+			for (int i = 0; res != null && i < n; i++)
+				res.add(new ChipResult(fn[i].isEmpty() ? null : fn[i], located[i],
+						err[i].isEmpty() ? null : err[i], mj[i], mr[i], boost[i], thre[i], red[i], bv[i], mp[i],
+						nanos[i], stages[i]));
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package image_procs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Samples the transformed chip straight from orig through inverse perspective
+ * maps, in place of the full warp of PersTransformation and the black-out mask
+ * arithmetic of Chip.chipTransform. Only the region later stages read is
+ * sampled - the blocks of the size layout and the corner pixels remediate
+ * evaluates - the rest of restr stays black. The maps only depend on the
+ * corners, so they are kept per thread and reused while the corners stay
+ * within tolerance, e.g. over consecutive frames of a tracked chip.
+ *
+ * The major corners are mapped to the corners of the edge x edge square,
+ * turned so that the corner nearest to the minor portion becomes the top right
+ * one, where the layout has its minor triangle.
+ */
+public class RoiSampler {
+
+	private static final int BLACK = 55; // darker pixels are blacked out like the minor triangle in chipTransform
+
+	// sampling maps of the last corners seen on a thread
+	private final ThreadLocal<Maps> cache = new ThreadLocal<Maps>();
+
+	private static class Maps {
+		final double[] corners; // oriented source corners the maps were built for, x/y interleaved
+		final Mat map1, map2; // fixed point maps for remap
+		final long stamp; // orig size the maps were built for, rows << 32 | cols
+
+		Maps(double[] corners, Mat map1, Mat map2, long stamp) {
+			this.corners = corners;
+			this.map1 = map1;
+			this.map2 = map2;
+			this.stamp = stamp;
+		}
+	}
+
+	// given
+	protected ChipLayout layout; // compiled design of the chip
+	protected int edge; // edge length of the transformed chip
+	protected double tolerance; // largest corner movement in pixels the maps are reused for
+
+	// derived
+	protected int top, bottom, left, right; // sampled region of restr
+	protected AtomicLong built, reused; // number of map builds and reuses, over all threads
+
+	public RoiSampler(ChipLayout layout, double tolerance) {
+		this.layout = layout;
+		this.edge = layout.edge();
+		this.tolerance = tolerance;
+		built = new AtomicLong();
+		reused = new AtomicLong();
+		// remediate reads the top left size[0] x size[1] pixels
+		top = 0;
+		left = 0;
+		for (int[] q : layout.quadrants()) {
+			bottom = Math.max(bottom, q[1]);
+			right = Math.max(right, q[3]);
+		}
+		for (int[] r : layout.rects()) {
+			top = Math.min(top, r[0]);
+			bottom = Math.max(bottom, r[1]);
+			left = Math.min(left, r[2]);
+			right = Math.max(right, r[3]);
+		}
+		top = Math.max(0, top);
+		left = Math.max(0, left);
+		bottom = Math.min(edge, bottom);
+		right = Math.min(edge, right);
+	}
+
+	public RoiSampler(ChipLayout layout) {
+		this(layout, .25);
+	}
+
+	/**
+	 * Sample the transformed chip from orig - update restr
+	 *
+	 * @param orig      BGR image of the chip
+	 * @param mjCorners corners of major chip portion in clockwise order
+	 * @param mrCorners corners of minor chip portion
+	 * @param restr     receives the edge x edge transformed chip
+	 */
+	public void sample(Mat orig, MatOfPoint2f mjCorners, MatOfPoint2f mrCorners, Mat restr) {
+		Point[] mj = mjCorners.toArray(), mr = mrCorners.toArray();
+		if (mj.length != 4 || mr.length == 0)
+			throw new IllegalArgumentException("Expected 4 major and some minor corners, got " + mj.length + " and "
+					+ mr.length);
+		double[] corners = orient(mj, mr);
+		Maps maps = maps(corners, (long) orig.rows() << 32 | orig.cols());
+
+		restr.create(edge, edge, CvType.CV_8UC3);
+		restr.setTo(new Scalar(0, 0, 0));
+		Mat roi = restr.submat(top, bottom, left, right);
+		try {
+			Imgproc.remap(orig, roi, maps.map1, maps.map2, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT,
+					new Scalar(0, 0, 0));
+			Imgproc.threshold(roi, roi, BLACK - 1, 255, Imgproc.THRESH_TOZERO); // v < BLACK -> 0, in place
+		} finally {
+			roi.release();
+		}
+	}
+
+	/**
+	 * @param mj major corners in clockwise order
+	 * @param mr minor corners
+	 * @return major corners in clockwise order starting from the one mapped to
+	 *         the top left, x/y interleaved
+	 */
+	private static double[] orient(Point[] mj, Point[] mr) {
+		double cx = 0, cy = 0;
+		for (Point p : mr) {
+			cx += p.x / mr.length;
+			cy += p.y / mr.length;
+		}
+		int near = 0; // major corner nearest to the minor portion, becomes top right
+		for (int i = 1; i < 4; i++)
+			if (Math.hypot(mj[i].x - cx, mj[i].y - cy) < Math.hypot(mj[near].x - cx, mj[near].y - cy))
+				near = i;
+		double[] res = new double[8];
+		for (int d = 0; d < 4; d++) {
+			Point p = mj[(d + near + 3) % 4];
+			res[2 * d] = p.x;
+			res[2 * d + 1] = p.y;
+		}
+		return res;
+	}
+
+	/**
+	 * @param corners oriented source corners
+	 * @param stamp   size of orig
+	 * @return maps of this thread, rebuilt unless the corners are within
+	 *         tolerance of the ones they were built for
+	 */
+	private Maps maps(double[] corners, long stamp) {
+		Maps m = cache.get();
+		if (m != null && m.stamp == stamp) {
+			double moved = 0;
+			for (int i = 0; i < 8; i++)
+				moved = Math.max(moved, Math.abs(m.corners[i] - corners[i]));
+			if (moved <= tolerance) {
+				reused.incrementAndGet();
+				return m;
+			}
+		}
+		if (m != null)
+			MatScope.release(m.map1, m.map2);
+		m = build(corners, stamp);
+		cache.set(m);
+		built.incrementAndGet();
+		return m;
+	}
+
+	/**
+	 * Inverse perspective maps of the sampled region
+	 *
+	 * @param corners oriented source corners
+	 * @param stamp   size of orig
+	 * @return maps, owned by the cache of the calling thread
+	 */
+	private Maps build(double[] corners, long stamp) {
+		try (MatScope ms = new MatScope("RoiSampler")) {
+			MatOfPoint2f from = ms.add(new MatOfPoint2f(layout.target()));
+			MatOfPoint2f to = ms.add(new MatOfPoint2f(new Point(corners[0], corners[1]),
+					new Point(corners[2], corners[3]), new Point(corners[4], corners[5]),
+					new Point(corners[6], corners[7])));
+			double[] h = new double[9];
+			ms.add(Imgproc.getPerspectiveTransform(from, to)).get(0, 0, h); // restr -> orig
+
+			int rows = bottom - top, cols = right - left;
+			float[] mx = new float[rows * cols], my = new float[rows * cols];
+			for (int y = 0, i = 0; y < rows; y++) {
+				double v = y + top;
+				for (int x = 0; x < cols; x++, i++) {
+					double u = x + left, w = h[6] * u + h[7] * v + h[8];
+					mx[i] = (float) ((h[0] * u + h[1] * v + h[2]) / w);
+					my[i] = (float) ((h[3] * u + h[4] * v + h[5]) / w);
+				}
+			}
+			Mat fx = ms.add(new Mat(rows, cols, CvType.CV_32FC1)), fy = ms.add(new Mat(rows, cols, CvType.CV_32FC1));
+			fx.put(0, 0, mx);
+			fy.put(0, 0, my);
+			Mat map1 = MatScope.own(new Mat(), "RoiSampler"), map2 = MatScope.own(new Mat(), "RoiSampler");
+			Imgproc.convertMaps(fx, fy, map1, map2, CvType.CV_16SC2, false); // fixed point remaps faster
+			return new Maps(corners, map1, map2, stamp);
+		}
+	}
+
+	/**
+	 * Free the maps cached for the calling thread. Maps of other threads stay
+	 * registered in MatScope until those threads call release.
+	 */
+	public void release() {
+		Maps m = cache.get();
+		if (m != null)
+			MatScope.release(m.map1, m.map2);
+		cache.remove();
+	}
+}
@@ -0,0 +1,133 @@
+package image_procs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SpeculativeSearch {
+
+	// given
+	protected Chip chip; // chip whose orig and gray have been read in
+	protected ExecutorService pool; // pool candidates are evaluated on
+
+	// derived
+	protected AtomicInteger best; // lowest candidate index known to succeed
+	protected int evaluated; // number of candidates actually evaluated
+	protected List<Chip> finished; // succeeded trials, released unless adopted
+	protected boolean done; // whether run has returned
+
+	public SpeculativeSearch(Chip chip, ExecutorService pool) {
+		this.chip = chip;
+		this.pool = pool;
+	}
+
+	/**
+	 * Evaluate one candidate on a trial chip
+	 * 
+	 * @param id   index of candidate in sequential order
+	 * @param thre thresholding value of the candidate
+	 * @return trial chip if candidate succeeded, null otherwise
+	 * @throws IOException
+	 */
+	private Chip evaluate(int id, int thre) throws IOException {
+		if (id > best.get()) // an earlier candidate already won
+			return null;
+		synchronized (this) {
+			evaluated++;
+		}
+		Chip trial = new Chip(chip);
+		ChipMetrics prev = chip.metrics.attach();
+		try {
+			if (!trial.attempt(thre)) {
+				trial.releaseLocalisation();
+				return null;
+			}
+		} catch (IOException | RuntimeException e) {
+			trial.releaseLocalisation();
+			throw e;
+		} finally {
+			ChipMetrics.detach(prev);
+		}
+		best.accumulateAndGet(id, Math::min);
+		synchronized (this) {
+			if (done) { // search has already returned
+				trial.releaseLocalisation();
+				return null;
+			}
+			finished.add(trial);
+		}
+		return trial;
+	}
+
+	/**
+	 * Search chip over the threshold sweep - update inner, mjCorners, mrCorners,
+	 * restr, boost, threshold of chip.
+	 * 
+	 * The contour search runs on gray, which the L channel increments of readin
+	 * do not touch, so every L boost repeats the same threshold sweep. Each
+	 * threshold is therefore evaluated once, and the winner is the first
+	 * succeeding threshold in sweep order, exactly as in the sequential search.
+	 * Candidates behind a known winner are cancelled.
+	 * 
+	 * @param thresholds thresholding values in sequential trial order
+	 * @return 1 if chip was located, 0 otherwise
+	 * @throws IOException
+	 */
+	public int run(List<Integer> thresholds) throws IOException {
+		best = new AtomicInteger(thresholds.size());
+		finished = new ArrayList<Chip>();
+		done = false;
+		List<Future<Chip>> trials = new ArrayList<Future<Chip>>();
+		Chip winner = null;
+		for (int i = 0; i < thresholds.size(); i++) {
+			int id = i, thre = thresholds.get(i);
+			trials.add(pool.submit(() -> evaluate(id, thre)));
+		}
+		try {
+			// collect in sequential order so the first success is the sequential winner
+			for (int i = 0; i < trials.size(); i++) {
+				Chip trial = trials.get(i).get();
+				if (trial == null)
+					continue;
+				winner = trial;
+				chip.releaseLocalisation(); // e.g. the empty restr of the constructor
+				chip.inner = trial.inner;
+				chip.mjCorners = trial.mjCorners;
+				chip.mrCorners = trial.mrCorners;
+				chip.restr = trial.restr;
+				chip.boost = 1;
+				chip.threshold = thresholds.get(i);
+				return 1;
+			}
+			return 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while searching chip", e);
+		} catch (ExecutionException e) {
+			// sequential sweep would have thrown at this candidate as well
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			best.set(-1); // trials not started yet skip their work
+			for (Future<Chip> f : trials)
+				f.cancel(false);
+			// trials still running release their results themselves once done is set
+			synchronized (this) {
+				done = true;
+				for (Chip trial : finished)
+					if (trial != winner)
+						trial.releaseLocalisation();
+				finished.clear();
+			}
+		}
+	}
+
+}
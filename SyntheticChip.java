@@ -0,0 +1,189 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Renders a photo-like chip image from the layout in the size array, so that
+ * the pipeline can be measured without private images. The chip is drawn
+ * front-on (white inner area with a small minor portion at its top right
+ * corner, framed by a black border, spots per the layout) and then
+ * perspectively skewed, lit unevenly, flashed and made noisy.
+ */
+public class SyntheticChip {
+
+	// given
+	protected int[] size; // design data of the chip (see Chip)
+	protected double px; // image pixels per layout unit
+	protected double skew; // largest corner displacement, relative to the chip edge
+	protected double gradient; // brightness drop across the image, 0 - uniform lighting
+	protected double glare; // radius of the flash glare relative to the chip edge, 0 - none
+	protected double noise; // standard deviation of the Gaussian pixel noise
+	protected long seed; // seed of skew, spot colours and glare position
+
+	// derived
+	protected Mat img; // rendered BGR image
+	protected Point[] corners; // inner chip corners in img, clockwise from top-left
+
+	public SyntheticChip(int[] size, double px, double skew, double gradient, double glare, double noise, long seed) {
+		this.size = size;
+		this.px = px;
+		this.skew = skew;
+		this.gradient = gradient;
+		this.glare = glare;
+		this.noise = noise;
+		this.seed = seed;
+		render();
+	}
+
+	public SyntheticChip(int[] size) {
+		this(size, 3, .05, .3, 0, 4, 1);
+	}
+
+	/**
+	 * Draw the chip front-on, then warp and degrade it - update img, corners
+	 */
+	private void render() {
+		Random rnd = new Random(seed);
+		int edge = (int) Math.round(size[9] * px), border = edge / 10, margin = edge / 3;
+		int canvas = edge + 2 * (border + margin);
+		try (MatScope ms = new MatScope("SyntheticChip")) {
+			Mat flat = ms.add(new Mat(canvas, canvas, CvType.CV_8UC3, new Scalar(150, 150, 150))); // bench top
+			int o = margin + border; // offset of inner chip edge
+			Imgproc.rectangle(flat, new Point(margin, margin), new Point(canvas - margin, canvas - margin),
+					new Scalar(20, 20, 20), -1); // black border
+			Imgproc.rectangle(flat, new Point(o, o), new Point(o + edge, o + edge), new Scalar(235, 235, 235), -1);
+			// minor portion - triangle cut off the top right corner by a dark groove
+			int cut = edge / 8;
+			Imgproc.line(flat, new Point(o + edge - cut, o), new Point(o + edge, o + cut), new Scalar(20, 20, 20),
+					Math.max(2, border / 4));
+			// spots
+			for (int rid = 0; rid < size[0]; rid++) {
+				for (int cid = 0; cid < size[1]; cid++) {
+					int x = size[2] + cid * size[4] + (2 * cid + 1) * size[8];
+					int y = size[3] + rid * size[5] + (2 * rid + 1) * size[8];
+					Scalar colour = new Scalar(60 + rnd.nextInt(160), 60 + rnd.nextInt(160), 60 + rnd.nextInt(160));
+					Imgproc.circle(flat, new Point(o + x * px, o + y * px), (int) Math.round(size[8] * px), colour, -1);
+				}
+			}
+
+			// perspective skew of the inner chip corners
+			Point[] src = { new Point(o, o), new Point(o + edge, o), new Point(o + edge, o + edge),
+					new Point(o, o + edge) };
+			corners = new Point[4];
+			for (int i = 0; i < 4; i++)
+				corners[i] = new Point(src[i].x + (rnd.nextDouble() * 2 - 1) * skew * edge,
+						src[i].y + (rnd.nextDouble() * 2 - 1) * skew * edge);
+			MatOfPoint2f from = ms.add(new MatOfPoint2f(src)), to = ms.add(new MatOfPoint2f(corners));
+			Mat h = ms.add(Imgproc.getPerspectiveTransform(from, to));
+			img = MatScope.own(new Mat(), "SyntheticChip");
+			Imgproc.warpPerspective(flat, img, h, new Size(canvas, canvas));
+
+			// illumination gradient - darken linearly from left to right
+			if (gradient > 0) {
+				Mat shade = ms.add(new Mat(canvas, canvas, CvType.CV_8UC3, new Scalar(0, 0, 0)));
+				for (int c = 0; c < canvas; c++) {
+					double v = 255 * gradient * c / canvas;
+					Mat col = ms.add(shade.colRange(c, c + 1));
+					col.setTo(new Scalar(v, v, v));
+				}
+				Core.subtract(img, shade, img);
+			}
+			// flash glare - bright disc somewhere on the chip
+			if (glare > 0) {
+				Point centre = new Point(o + rnd.nextDouble() * edge, o + rnd.nextDouble() * edge);
+				Mat flash = ms.add(new Mat(canvas, canvas, CvType.CV_8UC3, new Scalar(0, 0, 0)));
+				Imgproc.circle(flash, centre, (int) (glare * edge), new Scalar(200, 200, 200), -1);
+				Imgproc.GaussianBlur(flash, flash, new Size(0, 0), glare * edge / 3);
+				Core.add(img, flash, img);
+			}
+			// sensor noise
+			if (noise > 0) {
+				Mat n = ms.add(new Mat(canvas, canvas, CvType.CV_16SC3));
+				Core.randn(n, 0, noise);
+				Mat wide = ms.add(new Mat());
+				img.convertTo(wide, CvType.CV_16SC3);
+				Core.add(wide, n, wide);
+				wide.convertTo(img, CvType.CV_8UC3);
+			}
+		}
+	}
+
+	/**
+	 * Write the rendered image to a file
+	 *
+	 * @param file target file, format given by its extension
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		if (!Imgcodecs.imwrite(file.getPath(), img))
+			throw new IOException("Cannot write " + file);
+	}
+
+	/**
+	 * Write a default synthetic chip to a temporary file, for the main methods
+	 * when no image is given
+	 *
+	 * @param size design data of the chip
+	 * @return filename of the image
+	 * @throws IOException
+	 */
+	public static String sample(int[] size) throws IOException {
+		File f = File.createTempFile("synthetic_chip", ".png");
+		f.deleteOnExit();
+		SyntheticChip sc = new SyntheticChip(size);
+		sc.write(f);
+		sc.release();
+		return f.getPath();
+	}
+
+	/**
+	 * Inner chip corners as a contour, for comparison with detected corners
+	 *
+	 * @return corners in clockwise order from top-left
+	 */
+	public List<Point> cornerList() {
+		List<Point> res = new ArrayList<Point>();
+		for (Point p : corners)
+			res.add(p.clone());
+		return res;
+	}
+
+	public void release() {
+		MatScope.release(img);
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length < 2) {
+			System.out.println("usage: SyntheticChip <output directory> <count> [skew gradient glare noise]");
+			return;
+		}
+		int[] size = { 7, 6, 20, 27, 40, 30, 35, 30, 15, 420 };
+		File dir = new File(args[0]);
+		dir.mkdirs();
+		int n = Integer.parseInt(args[1]);
+		double skew = args.length > 2 ? Double.parseDouble(args[2]) : .05;
+		double gradient = args.length > 3 ? Double.parseDouble(args[3]) : .3;
+		double glare = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+		double noise = args.length > 5 ? Double.parseDouble(args[5]) : 4;
+		for (int i = 0; i < n; i++) {
+			SyntheticChip sc = new SyntheticChip(size, 3, skew, gradient, glare, noise, i);
+			sc.write(new File(dir, String.format("synthetic_%04d.png", i)));
+			sc.release();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package image_procs;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Core;
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * Owns the CPU budget shared by the Java workers analysing images and the
+ * internal thread pool OpenCV parallelises single calls on. Both at full size
+ * oversubscribe the cores, so every adapt call splits the cores between them
+ * by the current demand: a single image in flight gets one worker with all
+ * cores as OpenCV threads, for latency; a queue of images gets as many
+ * workers as there are cores (half as many for large images, which keep two
+ * OpenCV threads each) and the remaining cores as OpenCV threads, for
+ * throughput. OpenCV's thread count is process wide, so one budget should
+ * govern all analysis of a process.
+ *
+ * Resizing OpenCV's pool under a running parallel call is unsafe with some
+ * backends, so a new split only takes full effect at a quiescent point, when
+ * no analysis is between begin and end. Until then the pool runs no more
+ * workers than fit the cores at the current OpenCV thread count, so a burst
+ * never oversubscribes the cores. A steady stream of images would never
+ * reach such a point by itself, so while a split is pending begin holds new
+ * analyses back for up to drain, letting the ones in flight finish. Analyses
+ * already running keep the split they started with: the last images of a
+ * batch, all in flight once the queue is empty, never gain OpenCV threads.
+ */
+public class ThreadBudget {
+
+	/**
+	 * Split of the cores between Java workers and OpenCV threads
+	 */
+	public static class Plan {
+		protected final int workers; // Java threads analysing images
+		protected final int cvThreads; // threads of OpenCV's internal pool
+
+		protected Plan(int workers, int cvThreads) {
+			this.workers = workers;
+			this.cvThreads = cvThreads;
+		}
+
+		public boolean latency() {
+			return workers == 1;
+		}
+
+		@Override
+		public String toString() {
+			return workers + " workers x " + cvThreads + " OpenCV threads";
+		}
+	}
+
+	// given
+	protected int cores; // CPU budget
+	protected int maxWorkers; // most Java workers the pool may grow to
+	protected long largePixels; // images at least this large keep two OpenCV threads per worker
+	protected long drain; // nanoseconds begin waits at most for the analyses in flight to switch splits
+	protected ThreadPoolExecutor pool; // worker pool the budget sizes
+
+	// derived
+	protected volatile Plan plan; // split currently in effect
+	protected Plan pending; // split waiting for a quiescent point, null if none
+	protected int inFlight; // analyses between begin and end
+	protected AtomicLong pixels; // moving average of the pixels per analysed image, 0 if none yet
+	protected AtomicLong images, busyNanos, changes; // counters
+	protected long startNanos, startCpu; // wall and process CPU time when the budget was created
+
+	/**
+	 * @param cores       CPU budget, e.g. Runtime.availableProcessors()
+	 * @param maxWorkers  most Java workers the pool may grow to
+	 * @param largePixels images at least this large are analysed with two
+	 *                    OpenCV threads even in batches
+	 * @param pool        worker pool to size, it runs one worker until the
+	 *                    first adapt; callers bounding its queue should allow
+	 *                    for the workers it no longer runs
+	 * @param drain       milliseconds an analysis waits at most in begin for a
+	 *                    pending split to take effect
+	 */
+	public ThreadBudget(int cores, int maxWorkers, long largePixels, ThreadPoolExecutor pool, long drain) {
+		if (cores < 1 || maxWorkers < 1)
+			throw new IllegalArgumentException("At least one core and one worker are required");
+		this.cores = cores;
+		this.maxWorkers = maxWorkers;
+		this.largePixels = largePixels;
+		this.pool = pool;
+		this.drain = drain * 1_000_000;
+		pixels = new AtomicLong();
+		images = new AtomicLong();
+		busyNanos = new AtomicLong();
+		changes = new AtomicLong();
+		startNanos = System.nanoTime();
+		startCpu = cpuNanos();
+		apply(new Plan(1, cores));
+	}
+
+	public ThreadBudget(int maxWorkers, ThreadPoolExecutor pool) {
+		this(Runtime.getRuntime().availableProcessors(), maxWorkers, 12_000_000, pool, 2000);
+	}
+
+	/**
+	 * @param cores       CPU budget
+	 * @param maxWorkers  most Java workers
+	 * @param demand      images queued or being analysed
+	 * @param pixels      typical pixels per image, 0 if unknown
+	 * @param largePixels threshold for large images
+	 * @return split of the cores for that demand
+	 */
+	public static Plan plan(int cores, int maxWorkers, int demand, long pixels, long largePixels) {
+		if (demand <= 1)
+			return new Plan(1, cores);
+		int perImage = pixels >= largePixels && cores >= 4 ? 2 : 1; // OpenCV threads a large image keeps
+		int workers = Math.max(1, Math.min(Math.min(maxWorkers, demand), cores / perImage));
+		return new Plan(workers, Math.max(1, cores / workers));
+	}
+
+	/**
+	 * Split the cores by the current demand of the pool - update plan, or
+	 * pending if an analysis is in flight
+	 *
+	 * @return split in effect
+	 */
+	public synchronized Plan adapt() {
+		int demand = pool.getQueue().size() + pool.getActiveCount();
+		Plan next = plan(cores, maxWorkers, demand, pixels.get(), largePixels);
+		if (next.workers == plan.workers && next.cvThreads == plan.cvThreads) {
+			pending = null;
+			notifyAll(); // nothing to drain for any more
+		} else if (inFlight == 0)
+			apply(next);
+		else { // OpenCV threads stay, workers only as far as the current split leaves cores for them
+			pending = next;
+			resize(Math.max(1, Math.min(next.workers, cores / plan.cvThreads)));
+		}
+		return plan;
+	}
+
+	/**
+	 * Mark the start of an analysis on a worker. While a split is pending,
+	 * wait up to drain for the analyses in flight to end, then apply it if
+	 * nothing else is in flight.
+	 */
+	public synchronized void begin() {
+		long deadline = System.nanoTime() + drain;
+		try {
+			for (long left = drain; pending != null && inFlight > 0 && left > 0; left = deadline - System.nanoTime())
+				wait(Math.max(1, left / 1_000_000));
+		} catch (InterruptedException e) { // start on the current split
+			Thread.currentThread().interrupt();
+		}
+		if (inFlight++ == 0 && pending != null)
+			apply(pending);
+	}
+
+	/**
+	 * Mark the end of an analysis started with begin, a pending split is
+	 * applied once the last one in flight ends
+	 */
+	public synchronized void end() {
+		if (--inFlight == 0) {
+			if (pending != null)
+				apply(pending);
+			notifyAll(); // analyses held back in begin
+		}
+	}
+
+	private void resize(int workers) {
+		if (workers > pool.getMaximumPoolSize()) { // grow the maximum first, shrink it last
+			pool.setMaximumPoolSize(workers);
+			pool.setCorePoolSize(workers);
+		} else {
+			pool.setCorePoolSize(workers);
+			pool.setMaximumPoolSize(workers);
+		}
+	}
+
+	/**
+	 * Switch to next, only while no analysis is in flight
+	 */
+	private void apply(Plan next) {
+		resize(next.workers);
+		Core.setNumThreads(next.cvThreads);
+		pending = null;
+		if (plan != null)
+			changes.incrementAndGet();
+		plan = next;
+	}
+
+	/**
+	 * Account an analysed image
+	 *
+	 * @param imagePixels pixels of the image
+	 * @param nanos       time a worker spent on it
+	 */
+	public void observe(long imagePixels, long nanos) {
+		pixels.accumulateAndGet(imagePixels, (avg, px) -> avg == 0 ? px : (7 * avg + px) / 8);
+		images.incrementAndGet();
+		busyNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return process CPU time in nanoseconds, -1 if the JVM does not tell
+	 */
+	private static long cpuNanos() {
+		try {
+			return ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class).getProcessCpuTime();
+		} catch (IllegalArgumentException e) { // not a HotSpot based JVM
+			return -1;
+		}
+	}
+
+	/**
+	 * @return how the cores were used since the budget was created
+	 */
+	public String report() {
+		double wall = System.nanoTime() - startNanos, cpu = cpuNanos() - startCpu;
+		Plan p = plan;
+		String used = startCpu < 0 ? "n/a" : String.format("%.0f%%", 100 * cpu / (wall * cores));
+		return String.format(
+				"%d cores: %s (%s mode, %d changes), %d images averaging %.1f MP, %.1f workers busy on average, "
+						+ "process CPU %s of the cores",
+				cores, p, p.latency() ? "latency" : "throughput", changes.get(), images.get(), pixels.get() / 1e6,
+				busyNanos.get() / wall, used);
+	}
+}
@@ -0,0 +1,333 @@
+package image_procs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Analysis of a tray photo holding several chips. The outlines of all chips
+ * are found in a single contour pass over the whole image: a chip is a hole
+ * in the dark pixels, enclosed by its black border. Each chip is then cut out
+ * with its border and analysed on a worker of the analyzer's pool, seeded
+ * with that outline as the inner border contour, so it is located without
+ * the readin sweep unless the outline cannot be transformed; the sweep then
+ * starts at the threshold the outline was found with. Chips are labelled by
+ * their tray position, rows top to bottom and columns left to right, e.g.
+ * R1C3.
+ */
+public class TrayAnalyzer implements AutoCloseable {
+
+	/**
+	 * One chip of the tray
+	 */
+	public static class Slot {
+		protected final int row, col; // tray position, from 1
+		protected final Rect rect; // region of the tray image the chip was cut out of
+		protected final ChipResult result; // corners are relative to rect
+
+		protected Slot(int row, int col, Rect rect, ChipResult result) {
+			this.row = row;
+			this.col = col;
+			this.rect = rect;
+			this.result = result;
+		}
+
+		public String label() {
+			return "R" + row + "C" + col;
+		}
+	}
+
+	// given
+	protected ChipLayout layout; // compiled chip design, shared by all chips of the tray
+	protected int workers; // number of worker threads
+	protected ChipOptions options; // analysis modes shared by all chips
+	protected double minArea, maxArea; // bounds of the chip interior, as fraction of the tray image
+	protected double margin; // added around the interior when cutting out a chip, as fraction of its size
+
+	// derived
+	protected ExecutorService pool; // workers analysing the chips of every tray, until close
+
+	public TrayAnalyzer(ChipLayout layout, int workers, ChipOptions options) {
+		if (workers < 1)
+			throw new IllegalArgumentException("At least one worker is required");
+		this.layout = layout;
+		this.workers = workers;
+		this.options = options;
+		minArea = .005;
+		maxArea = .3;
+		margin = .15;
+		pool = Executors.newFixedThreadPool(workers);
+	}
+
+	/**
+	 * Find the interior of every chip in one contour pass
+	 *
+	 * @param gray      gray scale tray image
+	 * @param threshold thresholding value, darker pixels form the borders
+	 * @return interior outlines of the chips, none inside another, owned by
+	 *         the caller
+	 */
+	public List<MatOfPoint> outlines(Mat gray, int threshold) {
+		try (MatScope ms = new MatScope("TrayAnalyzer")) {
+			Mat dark = ms.add(new Mat()), hierarchy = ms.add(new Mat());
+			Imgproc.threshold(gray, dark, threshold, 255, Imgproc.THRESH_BINARY_INV);
+			List<MatOfPoint> contour = new ArrayList<MatOfPoint>();
+			Imgproc.findContours(dark, contour, hierarchy, Imgproc.RETR_CCOMP, Imgproc.CHAIN_APPROX_SIMPLE);
+			ms.addAll(contour);
+			double total = gray.total();
+			List<MatOfPoint> res = new ArrayList<MatOfPoint>();
+			List<Rect> rects = new ArrayList<Rect>();
+			for (int i = 0; i < contour.size(); i++) {
+				if (hierarchy.get(0, i)[3] < 0) // outer boundary of dark pixels, not a hole
+					continue;
+				double area = Imgproc.contourArea(contour.get(i));
+				Rect r = Imgproc.boundingRect(contour.get(i));
+				// large enough, not the tray itself, and filling its bounding box like a chip does
+				if (area >= minArea * total && area <= maxArea * total && area >= .5 * r.area()) {
+					res.add(contour.get(i));
+					rects.add(r);
+				}
+			}
+			List<MatOfPoint> outermost = new ArrayList<MatOfPoint>(); // drop glare or spots inside a chip
+			for (int i = 0; i < rects.size(); i++) {
+				boolean nested = false;
+				for (int j = 0; j < rects.size(); j++)
+					nested |= j != i && inside(rects.get(i), rects.get(j));
+				if (!nested)
+					outermost.add(ms.keep(res.get(i)));
+			}
+			return MatScope.ownAll(outermost, "TrayAnalyzer");
+		}
+	}
+
+	/**
+	 * @return whether a lies within b
+	 */
+	private static boolean inside(Rect a, Rect b) {
+		return a.x >= b.x && a.y >= b.y && a.x + a.width <= b.x + b.width && a.y + a.height <= b.y + b.height;
+	}
+
+	/**
+	 * Group rectangles into rows by their centres and order each row left to
+	 * right
+	 *
+	 * @param rects chip rectangles in any order
+	 * @return rows top to bottom
+	 */
+	public static List<List<Rect>> rows(List<Rect> rects) {
+		List<Rect> sorted = new ArrayList<Rect>(rects);
+		sorted.sort(Comparator.comparingDouble(r -> r.y + r.height / 2.));
+		List<List<Rect>> res = new ArrayList<List<Rect>>();
+		List<Rect> cur = null;
+		double rowY = 0;
+		for (Rect r : sorted) {
+			double cy = r.y + r.height / 2.;
+			if (cur == null || cy - rowY > r.height / 2.) { // centre below the row by more than half a chip
+				cur = new ArrayList<Rect>();
+				res.add(cur);
+				rowY = cy;
+			}
+			cur.add(r);
+		}
+		for (List<Rect> row : res)
+			row.sort(Comparator.comparingInt(r -> r.x));
+		return res;
+	}
+
+	/**
+	 * Locate and analyse every chip of a tray image. Each chip is seeded with
+	 * its interior outline, so it is usually located without a sweep.
+	 *
+	 * @param filename tray image
+	 * @return analysed chips in row major order, failures included
+	 * @throws IOException           if the image cannot be read
+	 * @throws IllegalArgumentException if no chip outline was found
+	 */
+	public List<Slot> analyse(String filename) throws IOException {
+		Mat orig = MatScope.own(ImageSource.read(Paths.get(filename), options.reduction), "TrayAnalyzer");
+		Mat gray = MatScope.own(new Mat(), "TrayAnalyzer");
+		List<MatOfPoint> outlines = new ArrayList<MatOfPoint>();
+		AtomicBoolean abandoned = new AtomicBoolean(); // chips not started yet are skipped
+		CountDownLatch left = null; // chips still reading orig and gray
+		try {
+			Imgproc.cvtColor(orig, gray, Imgproc.COLOR_BGR2GRAY);
+			int threshold = otsu(gray);
+			outlines.addAll(outlines(gray, threshold));
+			Map<Rect, MatOfPoint> byRect = new IdentityHashMap<Rect, MatOfPoint>();
+			for (MatOfPoint o : outlines)
+				byRect.put(Imgproc.boundingRect(o), o);
+			List<List<Rect>> rows = rows(new ArrayList<Rect>(byRect.keySet()));
+			if (rows.isEmpty())
+				throw new IllegalArgumentException("No chip outline found on " + filename);
+
+			left = new CountDownLatch(outlines.size());
+			CountDownLatch chips = left;
+			List<Future<Slot>> pending = new ArrayList<Future<Slot>>();
+			for (int r = 0; r < rows.size(); r++) {
+				for (int c = 0; c < rows.get(r).size(); c++) {
+					int row = r + 1, col = c + 1;
+					MatOfPoint outline = byRect.get(rows.get(r).get(c));
+					Rect rect = widen(rows.get(r).get(c), orig);
+					pending.add(pool.submit(() -> {
+						try {
+							return abandoned.get() ? null
+									: analyse(filename, row, col, rect, orig, gray, outline, threshold);
+						} finally {
+							chips.countDown();
+						}
+					}));
+				}
+			}
+			List<Slot> res = new ArrayList<Slot>();
+			for (Future<Slot> f : pending)
+				res.add(f.get());
+			return res;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while analysing " + filename, e);
+		} catch (ExecutionException e) { // analyse captures its own exceptions
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			abandoned.set(true);
+			if (left != null)
+				awaitUninterruptibly(left); // chips already started read orig and gray
+			MatScope.release(outlines.toArray(new Mat[0]));
+			MatScope.release(orig, gray);
+		}
+	}
+
+	/**
+	 * Wait for the latch even if interrupted, the interrupt is restored
+	 */
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Cut one chip out of the tray and analyse it on a worker, failures are
+	 * captured rather than thrown
+	 *
+	 * @param rect    region of the chip, with margin
+	 * @param orig    tray image, only read
+	 * @param gray    gray scale tray image, only read
+	 * @param outline interior outline of the chip in tray coordinates, only
+	 *                read
+	 */
+	private Slot analyse(String filename, int row, int col, Rect rect, Mat orig, Mat gray, MatOfPoint outline,
+			int threshold) {
+		String name = filename + "#R" + row + "C" + col;
+		long start = System.nanoTime();
+		try {
+			Point[] pts = outline.toArray();
+			for (Point p : pts) { // into crop coordinates
+				p.x -= rect.x;
+				p.y -= rect.y;
+			}
+			// the chip owns its own copies
+			Chip chip = new Chip(name, crop(orig, rect), crop(gray, rect), new MatOfPoint(pts), layout, options,
+					threshold);
+			ChipResult res = ChipResult.of(chip, System.nanoTime() - start);
+			chip.release();
+			return new Slot(row, col, rect, res);
+		} catch (IOException | RuntimeException e) { // IllegalArgumentException if chip cannot be located
+			return new Slot(row, col, rect, ChipResult.failed(name, e, System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * @param img  image a chip is cut out of
+	 * @param rect region of the chip
+	 * @return copy of the region
+	 */
+	private static Mat crop(Mat img, Rect rect) {
+		Mat sub = img.submat(rect);
+		try {
+			return sub.clone();
+		} finally {
+			sub.release();
+		}
+	}
+
+	/**
+	 * @param gray gray scale image
+	 * @return threshold separating dark borders from the brighter rest
+	 */
+	private static int otsu(Mat gray) {
+		try (MatScope ms = new MatScope("TrayAnalyzer")) {
+			Mat dark = ms.add(new Mat());
+			return (int) Imgproc.threshold(gray, dark, 0, 255, Imgproc.THRESH_BINARY_INV + Imgproc.THRESH_OTSU);
+		}
+	}
+
+	/**
+	 * @param interior bounding rectangle of a chip interior
+	 * @param img      image the chip is cut out of
+	 * @return interior with margin for the border on every side, clipped to img
+	 */
+	private Rect widen(Rect interior, Mat img) {
+		int dx = (int) Math.round(interior.width * margin), dy = (int) Math.round(interior.height * margin);
+		int x0 = Math.max(0, interior.x - dx), y0 = Math.max(0, interior.y - dy);
+		int x1 = Math.min(img.cols(), interior.x + interior.width + dx);
+		int y1 = Math.min(img.rows(), interior.y + interior.height + dy);
+		return new Rect(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Stop the workers once the trays being analysed are done
+	 */
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if (args.length == 0) {
+			System.out.println("usage: TrayAnalyzer <tray image...>");
+			return;
+		}
+		String profiles = System.getProperty("chip.profiles"); // learned sweep starts file, unset - full sweep
+		try (ProfileStore store = profiles == null ? null : new ProfileStore(Paths.get(profiles));
+				TrayAnalyzer ta = new TrayAnalyzer(ChipLayout.DEFAULT, Runtime.getRuntime().availableProcessors(),
+						new ChipOptions().reduce(Integer.getInteger("chip.reduce", 1)).profiles(store))) {
+			for (String fn : args) {
+				long t0 = System.nanoTime();
+				List<Slot> slots = ta.analyse(fn);
+				int located = 0;
+				for (Slot s : slots) {
+					System.out.println(s.result.toJson());
+					located += s.result.located ? 1 : 0;
+				}
+				System.err.printf("%s: %d chips, %d located, %.0f ms%n", new File(fn).getName(), slots.size(),
+						located, (System.nanoTime() - t0) / 1e6);
+			}
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package image_procs;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.core.Scalar;
+
+/**
+ * Cheap quality checks of the search image on a small downscaled copy. Chip
+ * runs them on a reduced decode of the file before the full decode, or on the
+ * gray image before the sweep when it is handed one decoded already.
+ * Blurred, underexposed, glared out and border-less captures are rejected
+ * with a specific reason in a few milliseconds instead of failing after every
+ * sweep candidate. Images that pass get the thresholds at which their black
+ * border already forms a closed ring in the small copy, which the sweep tries
+ * first.
+ */
+public class Triage {
+
+	/**
+	 * Measurements of one image and the resulting decision
+	 */
+	public static class Verdict {
+		protected final boolean pass; // whether the image is worth the sweep
+		protected final String reason; // why it was rejected, null if it passed
+		protected final double sharpness; // variance of the Laplacian of the small copy
+		protected final double glare; // fraction of saturated pixels
+		protected final double mean; // mean intensity
+		protected final List<Integer> intact; // candidate thresholds the border forms a ring at, ascending
+
+		protected Verdict(String reason, double sharpness, double glare, double mean, List<Integer> intact) {
+			this.pass = reason == null;
+			this.reason = reason;
+			this.sharpness = sharpness;
+			this.glare = glare;
+			this.mean = mean;
+			this.intact = intact;
+		}
+
+		public boolean pass() {
+			return pass;
+		}
+
+		public String reason() {
+			return reason;
+		}
+
+		/**
+		 * Put the thresholds the border looked intact at first, keeping the
+		 * relative order of both parts
+		 *
+		 * @param thresholds sweep candidates in trial order
+		 * @return same candidates in the order the sweep should try them
+		 */
+		public List<Integer> order(List<Integer> thresholds) {
+			List<Integer> res = new ArrayList<Integer>(), rest = new ArrayList<Integer>();
+			for (int t : thresholds)
+				(intact.contains(t) ? res : rest).add(t);
+			res.addAll(rest);
+			return res;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s sharpness=%.1f glare=%.3f mean=%.1f intact=%s", pass ? "pass" : reason,
+					sharpness, glare, mean, intact);
+		}
+	}
+
+	private static final int SATURATED = 250; // pixels at least this bright count as glare
+
+	// given
+	protected int edge; // longer edge of the downscaled copy
+	protected double minSharpness; // blurrier images are rejected
+	protected double maxGlare; // images with a larger saturated fraction are rejected
+	protected double minInner; // smallest area of the border's inner hole, as fraction of the image
+
+	public Triage(int edge, double minSharpness, double maxGlare, double minInner) {
+		this.edge = edge;
+		this.minSharpness = minSharpness;
+		this.maxGlare = maxGlare;
+		this.minInner = minInner;
+	}
+
+	/**
+	 * Triage with empirically decided limits, loose enough to only reject
+	 * images the sweep would not locate anyway
+	 */
+	public Triage() {
+		this(320, 15, .5, .05);
+	}
+
+	/**
+	 * @param gray       gray scale search image
+	 * @param thresholds sweep candidates for gray
+	 * @return measurements and decision
+	 */
+	public Verdict assess(Mat gray, List<Integer> thresholds) {
+		try (MatScope ms = new MatScope("Triage")) {
+			Mat small = ms.add(new Mat());
+			double f = Math.min(1, (double) edge / Math.max(gray.rows(), gray.cols()));
+			if (f < 1)
+				Imgproc.resize(gray, small, new Size(), f, f, Imgproc.INTER_AREA);
+			else
+				gray.copyTo(small);
+
+			// exposure and glare
+			double mean = Core.mean(small).val[0];
+			Mat bright = ms.add(new Mat());
+			Imgproc.threshold(small, bright, SATURATED - 1, 255, Imgproc.THRESH_BINARY);
+			double glare = (double) Core.countNonZero(bright) / small.total();
+
+			// blur, variance of the Laplacian
+			Mat lap = ms.add(new Mat());
+			MatOfDouble mu = ms.add(new MatOfDouble()), sigma = ms.add(new MatOfDouble());
+			Imgproc.Laplacian(small, lap, CvType.CV_64F);
+			Core.meanStdDev(lap, mu, sigma);
+			double sd = sigma.toArray()[0], sharpness = sd * sd;
+
+			List<Integer> intact = new ArrayList<Integer>();
+			if (thresholds.isEmpty())
+				return new Verdict(String.format("underexposed, mean intensity %.0f", mean), sharpness, glare, mean,
+						intact);
+			if (glare > maxGlare)
+				return new Verdict(String.format("overexposed, %.0f%% of the image saturated", glare * 100),
+						sharpness, glare, mean, intact);
+			if (sharpness < minSharpness)
+				return new Verdict(String.format("blurred, sharpness %.1f below %.1f", sharpness, minSharpness),
+						sharpness, glare, mean, intact);
+
+			// border, a dark ring around a large hole at some candidate threshold
+			Mat dark = ms.add(new Mat()), hierarchy = ms.add(new Mat());
+			for (int t : thresholds)
+				if (ring(small, t, dark, hierarchy))
+					intact.add(t);
+			if (intact.isEmpty())
+				return new Verdict(glare > 0.01
+						? String.format("border interrupted, likely by glare (%.1f%% saturated)", glare * 100)
+						: "no closed border found", sharpness, glare, mean, intact);
+			return new Verdict(null, sharpness, glare, mean, intact);
+		}
+	}
+
+	/**
+	 * @param small     downscaled gray image
+	 * @param threshold thresholding value, darker pixels form the border
+	 * @param dark      buffer for the thresholded image
+	 * @param hierarchy buffer for the contour hierarchy
+	 * @return whether dark pixels enclose a hole of at least minInner of small
+	 */
+	private boolean ring(Mat small, int threshold, Mat dark, Mat hierarchy) {
+		Imgproc.threshold(small, dark, threshold, 255, Imgproc.THRESH_BINARY_INV);
+		List<MatOfPoint> contour = new ArrayList<MatOfPoint>();
+		Imgproc.findContours(dark, contour, hierarchy, Imgproc.RETR_CCOMP, Imgproc.CHAIN_APPROX_SIMPLE);
+		try (MatScope ms = new MatScope("Triage")) {
+			ms.addAll(contour);
+			double min = minInner * small.total();
+			for (int i = 0; i < contour.size(); i++) {
+				boolean hole = hierarchy.get(0, i)[3] >= 0; // has a parent - second level of the two level hierarchy
+				if (hole && Imgproc.contourArea(contour.get(i)) >= min)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		Triage tr = new Triage();
+		for (String fn : args) {
+			try (MatScope ms = new MatScope("Triage")) {
+				Mat gray = ms.add(new Mat());
+				Imgproc.cvtColor(ms.add(ImageSource.read(Paths.get(fn), 1)), gray, Imgproc.COLOR_BGR2GRAY);
+				Scalar gms = Core.mean(gray);
+				List<Integer> thresholds = new ArrayList<Integer>();
+				for (int thre = 90; thre <= (int) gms.val[0];) { // as Chip.thresholds
+					thre += 10;
+					thresholds.add(thre);
+				}
+				long t0 = System.nanoTime();
+				Verdict v = tr.assess(gray, thresholds);
+				System.out.printf("%s: %s (%.1f ms)%n", fn, v, (System.nanoTime() - t0) / 1e6);
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package image_procs;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorised bodies of PixelKernels, only loaded when the
+ * jdk.incubator.vector module is present. Bytes are treated as unsigned:
+ * saturation is detected by unsigned comparison of the wrapped result with
+ * an operand, so every lane computes exactly what the scalar kernel does.
+ * Tails shorter than a vector run through the scalar kernels.
+ */
+final class VectorKernels {
+
+	private static final VectorSpecies<Byte> S = ByteVector.SPECIES_PREFERRED;
+
+	private VectorKernels() {
+	}
+
+	static void shiftNonZero(byte[] px, int channels, int[] shift) {
+		int len = S.length(), i = 0, bound = S.loopBound(px.length);
+		byte[] pattern = new byte[len + channels]; // shift of every lane, read from offset i % channels
+		for (int k = 0; k < pattern.length; k++)
+			pattern[k] = (byte) shift[k % channels];
+		for (; i < bound; i += len) {
+			ByteVector v = ByteVector.fromArray(S, px, i);
+			ByteVector sum = v.add(ByteVector.fromArray(S, pattern, i % channels));
+			VectorMask<Byte> over = sum.compare(VectorOperators.UNSIGNED_LT, v); // wrapped past 255
+			VectorMask<Byte> zero = v.compare(VectorOperators.EQ, (byte) 0);
+			sum.blend((byte) -1, over).blend(v, zero).intoArray(px, i);
+		}
+		PixelKernels.scalarShiftNonZero(px, i, px.length, channels, shift);
+	}
+
+	static void maskInvAdd(byte[] mask, byte[] img, byte[] dst) {
+		int len = S.length(), i = 0, bound = S.loopBound(dst.length);
+		ByteVector zero = ByteVector.zero(S);
+		for (; i < bound; i += len) {
+			ByteVector m = ByteVector.fromArray(S, mask, i);
+			ByteVector t = m.add(ByteVector.fromArray(S, img, i));
+			VectorMask<Byte> carry = t.compare(VectorOperators.UNSIGNED_LT, m); // mask + img >= 256
+			zero.blend(t.add((byte) 1), carry).intoArray(dst, i); // mask + img - 255 = t + 1 on carry, else <= 0
+		}
+		PixelKernels.scalarMaskInvAdd(mask, img, dst, i, dst.length);
+	}
+
+	static void subtract(byte[] a, byte[] b, byte[] dst) {
+		int len = S.length(), i = 0, bound = S.loopBound(dst.length);
+		for (; i < bound; i += len) {
+			ByteVector va = ByteVector.fromArray(S, a, i), vb = ByteVector.fromArray(S, b, i);
+			va.sub(vb).blend((byte) 0, va.compare(VectorOperators.UNSIGNED_LT, vb)).intoArray(dst, i);
+		}
+		PixelKernels.scalarSubtract(a, b, dst, i, dst.length);
+	}
+}
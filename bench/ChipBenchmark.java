@@ -0,0 +1,133 @@
+package image_procs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Stage benchmarks on a synthetic chip, see README for how to run them
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChipBenchmark {
+
+	// synthetic image, see SyntheticChip
+	@Param({ "3" })
+	public double px;
+	@Param({ "0", ".05" })
+	public double skew;
+	@Param({ "0", ".3" })
+	public double gradient;
+	@Param({ "0" })
+	public double glare;
+	@Param({ "4" })
+	public double noise;
+
+	protected ChipLayout layout = ChipLayout.DEFAULT;
+	protected SyntheticChip sc;
+	protected Chip located; // chip analysed once, input of the single stage benchmarks
+	protected Mat block, channel; // a block of located and its first channel
+	protected HistogramEngine engine;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		sc = new SyntheticChip(layout.size(), px, skew, gradient, glare, noise, 1);
+		located = new Chip(sc.img.clone(), layout, new ChipOptions());
+		block = located.blocks[5];
+		channel = MatScope.own(new Mat(), "ChipBenchmark");
+		Core.extractChannel(block, channel, 0);
+		engine = new HistogramEngine();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		located.release();
+		MatScope.release(channel);
+		sc.release();
+	}
+
+	@Benchmark
+	public int readin() throws IOException {
+		Chip chip = new Chip(layout, new ChipOptions());
+		chip.orig = sc.img; // shared, readin only reads it
+		int res = chip.readin();
+		chip.orig = null;
+		chip.release();
+		return res;
+	}
+
+	@Benchmark
+	public int contourFinder() {
+		List<MatOfPoint> cts = located.contourFinder(located.gray, located.threshold);
+		int res = cts.size();
+		MatScope.releaseExcept(cts);
+		return res;
+	}
+
+	@Benchmark
+	public int largestContours() {
+		List<MatOfPoint> cts = located.contourFinder(located.gray, located.threshold, 4);
+		int res = cts.size();
+		MatScope.releaseExcept(cts);
+		return res;
+	}
+
+	@Benchmark
+	public Mat chipTransform() throws IOException {
+		located.chipTransform();
+		return located.restr;
+	}
+
+	@Benchmark
+	public int[][] blockize() throws IOException {
+		located.blockize();
+		return located.blockValue;
+	}
+
+	@Benchmark
+	public Mat remediate() throws IOException {
+		located.remediate();
+		return located.remediated;
+	}
+
+	@Benchmark
+	public void histogram(Blackhole bh) {
+		Histogram h = new Histogram(channel, 7);
+		bh.consume(h.majorPeakInten);
+		bh.consume(h.minorPeakInten);
+	}
+
+	@Benchmark
+	public Histogram[] histogramEngine() {
+		return engine.histograms(block, 7);
+	}
+
+	@Benchmark
+	public Mat normalization() {
+		ImageKit ik = new ImageKit(block, 1, 7);
+		MatScope.release(ik.norm);
+		return ik.norm;
+	}
+}